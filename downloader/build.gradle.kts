@@ -44,6 +44,12 @@ tasks.withType<KotlinCompile>().configureEach {
     kotlinOptions.jvmTarget = "1.8"
 }
 
+// The *Benchmark unit tests are skipped unless the build is run with -Pbenchmark.
+tasks.withType<Test>().configureEach {
+    systemProperty("benchmark", project.hasProperty("benchmark"))
+    systemProperty("benchmark.reportDir", "$buildDir/reports/benchmarks")
+}
+
 dependencies {
     implementation("androidx.core:core-ktx:1.6.0")
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-core:1.4.3")
@@ -52,6 +58,7 @@ dependencies {
     implementation("androidx.work:work-runtime-ktx:2.5.0")
 
     testImplementation("junit:junit:4.13.2")
+    testImplementation("com.squareup.okhttp3:mockwebserver:4.9.3")
     androidTestImplementation("androidx.test.ext:junit:1.1.3")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.4.0")
 }
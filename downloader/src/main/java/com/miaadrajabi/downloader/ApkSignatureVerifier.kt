@@ -0,0 +1,358 @@
+package com.miaadrajabi.downloader
+
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.security.GeneralSecurityException
+import java.security.KeyFactory
+import java.security.MessageDigest
+import java.security.NoSuchAlgorithmException
+import java.security.PublicKey
+import java.security.Signature
+import java.security.SignatureException
+import java.security.cert.CertificateFactory
+import java.security.cert.X509Certificate
+import java.security.spec.MGF1ParameterSpec
+import java.security.spec.PSSParameterSpec
+import java.security.spec.X509EncodedKeySpec
+import java.util.Locale
+import java.util.zip.ZipException
+import kotlin.math.min
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+
+/**
+ * 1. Verifies APK Signature Scheme v2/v3 signatures without PackageManager: the APK Signing
+ *    Block in front of the central directory is parsed, every signer's signature over its
+ *    signed data is checked, and the signed content digests are compared with digests of the
+ *    file computed here.
+ * 2. Content digests follow the scheme's 1 MB chunk structure: each chunk of the entries, the
+ *    central directory and the EOCD record is hashed on its own and the chunk digests are
+ *    hashed together, so chunks are spread over [parallelism] workers on
+ *    [Dispatchers.Default]; the caller suspends until they are done.
+ * 3. JAR (v1) signatures are not covered; [verify] returns null when the file has no
+ *    signing block.
+ */
+internal class ApkSignatureVerifier(
+    private val parallelism: Int = Runtime.getRuntime().availableProcessors()
+) {
+
+    /**
+     * 4. Outcome of a successful verification: the scheme that was checked and the SHA-256
+     *    digest (lowercase hex) of each signer's certificate.
+     */
+    class Result(val scheme: Int, val certificateSha256: List<String>) {
+        /**
+         * True if a signer's certificate has the SHA-256 digest [pinned], given as hex with or
+         * without colons in any case.
+         */
+        fun signedBy(pinned: String): Boolean =
+            pinned.replace(":", "").trim().toLowerCase(Locale.US) in certificateSha256
+    }
+
+    /**
+     * 5. Verifies [file] for a device running [platformSdk]; v3 signers outside their SDK range
+     *    do not apply. Throws [SignatureException] or [ZipException] when the file does not
+     *    verify.
+     */
+    suspend fun verify(file: File, platformSdk: Int): Result? = RandomAccessFile(file, "r").use { raf ->
+        val channel = raf.channel
+        val length = channel.size()
+        val directory = ZipCentralDirectory.locate(channel, length) ?: return null
+        val block = readSigningBlock(channel, directory.offset) ?: return null
+        val signers = sequenceOf(V31_BLOCK_ID, V3_BLOCK_ID)
+            .mapNotNull { id -> block.values[id]?.let { parseSigners(it, v3 = true) } }
+            .map { candidates -> candidates.filter { platformSdk in it.minSdk..it.maxSdk } }
+            .firstOrNull { it.isNotEmpty() }
+        val scheme = if (signers != null) 3 else 2
+        val verified = signers ?: block.values[V2_BLOCK_ID]?.let { parseSigners(it, v3 = false) }
+            ?: throw SignatureException("No v2/v3 signer for platform SDK $platformSdk")
+        val expected = verified.map { it.contentDigest }
+        val computed = computeDigests(
+            channel,
+            expected.map { it.first }.toSet(),
+            block.start,
+            directory,
+            length
+        )
+        expected.forEach { (algorithm, digest) ->
+            if (!MessageDigest.isEqual(digest, computed.getValue(algorithm))) {
+                throw SignatureException("APK content digest (${algorithm.jcaName}) mismatch")
+            }
+        }
+        Result(scheme, verified.map { FileIntegrityVerifier.toHex(sha256(it.certificate.encoded)) })
+    }
+
+    private fun readSigningBlock(channel: FileChannel, directoryOffset: Long): SigningBlock? {
+        if (directoryOffset < BLOCK_FOOTER_BYTES) return null
+        val footer = read(channel, directoryOffset - BLOCK_FOOTER_BYTES, BLOCK_FOOTER_BYTES)
+        if (footer.getLong(8) != BLOCK_MAGIC_LO || footer.getLong(16) != BLOCK_MAGIC_HI) return null
+        val size = footer.getLong(0)
+        if (size < BLOCK_FOOTER_BYTES || size > Int.MAX_VALUE - 8 || size + 8 > directoryOffset) {
+            throw ZipException("APK Signing Block size $size out of range")
+        }
+        val start = directoryOffset - size - 8
+        val block = read(channel, start, (size + 8).toInt())
+        if (block.getLong(0) != size) throw ZipException("APK Signing Block sizes disagree")
+        // ID-value pairs between the leading size and the footer.
+        val pairs = slice(block, 8, block.capacity() - BLOCK_FOOTER_BYTES)
+        val values = HashMap<Int, ByteBuffer>()
+        while (pairs.hasRemaining()) {
+            if (pairs.remaining() < 8) throw ZipException("Truncated APK Signing Block entry")
+            val pairLength = pairs.long
+            if (pairLength < 4 || pairLength > pairs.remaining()) throw ZipException("APK Signing Block entry length $pairLength")
+            val id = pairs.int
+            values[id] = slice(pairs, pairs.position(), pairs.position() + pairLength.toInt() - 4)
+            pairs.position(pairs.position() + pairLength.toInt() - 4)
+        }
+        return SigningBlock(start, values)
+    }
+
+    /**
+     * 6. Parses and checks the signers of a v2 or v3 block: the strongest supported signature
+     *    over the signed data, matching digest and signature algorithm lists, and a first
+     *    certificate carrying the signer's public key.
+     */
+    private fun parseSigners(value: ByteBuffer, v3: Boolean): List<Signer> = try {
+        readSigners(value, v3)
+    } catch (truncated: BufferUnderflowException) {
+        throw SignatureException("Truncated signer record", truncated)
+    }
+
+    private fun readSigners(value: ByteBuffer, v3: Boolean): List<Signer> {
+        val signers = lengthPrefixed(value.duplicate().order(ByteOrder.LITTLE_ENDIAN))
+        val parsed = ArrayList<Signer>()
+        while (signers.hasRemaining()) {
+            val signer = lengthPrefixed(signers)
+            val signedData = lengthPrefixed(signer)
+            val minSdk = if (v3) signer.int else 0
+            val maxSdk = if (v3) signer.int else Int.MAX_VALUE
+            val signatures = lengthPrefixed(signer)
+            val publicKeyBytes = bytes(lengthPrefixed(signer))
+
+            var best: SignatureAlgorithm? = null
+            var bestSignature: ByteArray? = null
+            val signatureIds = ArrayList<Int>()
+            while (signatures.hasRemaining()) {
+                val entry = lengthPrefixed(signatures)
+                val id = entry.int
+                signatureIds += id
+                val algorithm = SignatureAlgorithm.of(id) ?: continue
+                if (best == null || algorithm.digest.strength > best.digest.strength) {
+                    best = algorithm
+                    bestSignature = bytes(lengthPrefixed(entry))
+                }
+            }
+            if (best == null || bestSignature == null) throw SignatureException("No supported signature algorithm in $signatureIds")
+            val publicKey = KeyFactory.getInstance(best.keyAlgorithm).generatePublic(X509EncodedKeySpec(publicKeyBytes))
+            if (!best.verify(publicKey, signedData.duplicate(), bestSignature)) {
+                throw SignatureException("Signature over signed data did not verify (${best.jcaName})")
+            }
+
+            val digests = lengthPrefixed(signedData)
+            val certificates = lengthPrefixed(signedData)
+            var contentDigest: ByteArray? = null
+            val digestIds = ArrayList<Int>()
+            while (digests.hasRemaining()) {
+                val entry = lengthPrefixed(digests)
+                val id = entry.int
+                digestIds += id
+                if (id == best.id) contentDigest = bytes(lengthPrefixed(entry))
+            }
+            if (digestIds != signatureIds) throw SignatureException("Digest and signature algorithms differ")
+            if (!certificates.hasRemaining()) throw SignatureException("Signer has no certificate")
+            val certificate = CertificateFactory.getInstance("X.509")
+                .generateCertificate(ByteArrayInputStream(bytes(lengthPrefixed(certificates)))) as X509Certificate
+            if (!certificate.publicKey.encoded.contentEquals(publicKeyBytes)) {
+                throw SignatureException("Certificate does not carry the signer's public key")
+            }
+            if (v3 && (signedData.int != minSdk || signedData.int != maxSdk)) {
+                throw SignatureException("Signed SDK range differs from the signer's")
+            }
+            parsed += Signer(best.digest to contentDigest!!, certificate, minSdk, maxSdk)
+        }
+        if (parsed.isEmpty()) throw SignatureException("Signature block has no signers")
+        return parsed
+    }
+
+    /**
+     * 7. Chunked digests of the entries, the central directory and the EOCD record (with its
+     *    directory offset pointing at the signing block, as when the APK was signed).
+     */
+    private suspend fun computeDigests(
+        channel: FileChannel,
+        algorithms: Set<ContentDigest>,
+        blockStart: Long,
+        directory: ZipCentralDirectory,
+        length: Long
+    ): Map<ContentDigest, ByteArray> {
+        val eocdStart = directory.offset + directory.size
+        val eocd = read(channel, eocdStart, (length - eocdStart).toInt())
+        eocd.putInt(EOCD_DIRECTORY_OFFSET, blockStart.toInt())
+        val sections = listOf(
+            Section(0L, blockStart, null),
+            Section(directory.offset, directory.size, null),
+            Section(0L, eocd.capacity().toLong(), eocd)
+        )
+        val chunks = sections.flatMap { section ->
+            (0 until (section.size + CHUNK_BYTES - 1) / CHUNK_BYTES).map { index ->
+                val offset = index * CHUNK_BYTES
+                Chunk(section, offset, min(CHUNK_BYTES, section.size - offset).toInt())
+            }
+        }
+        val chunkDigests = algorithms.associateWith { ByteArray(chunks.size * it.bytes) }
+        val workers = parallelism.coerceIn(1, maxOf(1, chunks.size))
+        coroutineScope {
+            (0 until workers).map { worker ->
+                async(Dispatchers.Default) {
+                    val buffer = ByteBuffer.allocate(CHUNK_BYTES.toInt())
+                    val prefix = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN)
+                    val digests = algorithms.associateWith { MessageDigest.getInstance(it.jcaName) }
+                    for (index in chunks.size * worker / workers until chunks.size * (worker + 1) / workers) {
+                        val chunk = chunks[index]
+                        buffer.clear()
+                        buffer.limit(chunk.length)
+                        if (chunk.section.memory != null) {
+                            buffer.put(slice(chunk.section.memory, chunk.offset.toInt(), chunk.offset.toInt() + chunk.length))
+                        } else {
+                            val position = chunk.section.start + chunk.offset
+                            while (buffer.hasRemaining()) {
+                                if (channel.read(buffer, position + buffer.position()) < 0) {
+                                    throw ZipException("APK ended inside a signed section")
+                                }
+                            }
+                        }
+                        prefix.clear()
+                        prefix.put(CHUNK_PREFIX).putInt(chunk.length)
+                        digests.forEach { (algorithm, digest) ->
+                            digest.update(prefix.array())
+                            buffer.flip()
+                            digest.update(buffer)
+                            digest.digest(chunkDigests.getValue(algorithm), index * algorithm.bytes, algorithm.bytes)
+                        }
+                    }
+                }
+            }.awaitAll()
+        }
+        return chunkDigests.mapValues { (algorithm, concatenated) ->
+            MessageDigest.getInstance(algorithm.jcaName).run {
+                update(ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).put(TOP_PREFIX).putInt(chunks.size).array())
+                update(concatenated)
+                digest()
+            }
+        }
+    }
+
+    private class SigningBlock(val start: Long, val values: Map<Int, ByteBuffer>)
+
+    private class Signer(
+        val contentDigest: Pair<ContentDigest, ByteArray>,
+        val certificate: X509Certificate,
+        val minSdk: Int,
+        val maxSdk: Int
+    )
+
+    private class Section(val start: Long, val size: Long, val memory: ByteBuffer?)
+
+    private class Chunk(val section: Section, val offset: Long, val length: Int)
+
+    private enum class ContentDigest(val jcaName: String, val bytes: Int, val strength: Int) {
+        CHUNKED_SHA256("SHA-256", 32, 1),
+        CHUNKED_SHA512("SHA-512", 64, 2)
+    }
+
+    /**
+     * 8. Signature algorithms of the scheme this verifier supports; the verity variants
+     *    (0x0421 and up) are skipped in favour of the chunked ones signed next to them.
+     */
+    private enum class SignatureAlgorithm(
+        val id: Int,
+        val jcaName: String,
+        val keyAlgorithm: String,
+        val digest: ContentDigest,
+        private val pss: PSSParameterSpec? = null
+    ) {
+        RSA_PSS_SHA256(0x0101, "SHA256withRSA/PSS", "RSA", ContentDigest.CHUNKED_SHA256, pss("SHA-256", MGF1ParameterSpec.SHA256, 32)),
+        RSA_PSS_SHA512(0x0102, "SHA512withRSA/PSS", "RSA", ContentDigest.CHUNKED_SHA512, pss("SHA-512", MGF1ParameterSpec.SHA512, 64)),
+        RSA_PKCS1_SHA256(0x0103, "SHA256withRSA", "RSA", ContentDigest.CHUNKED_SHA256),
+        RSA_PKCS1_SHA512(0x0104, "SHA512withRSA", "RSA", ContentDigest.CHUNKED_SHA512),
+        ECDSA_SHA256(0x0201, "SHA256withECDSA", "EC", ContentDigest.CHUNKED_SHA256),
+        ECDSA_SHA512(0x0202, "SHA512withECDSA", "EC", ContentDigest.CHUNKED_SHA512),
+        DSA_SHA256(0x0301, "SHA256withDSA", "DSA", ContentDigest.CHUNKED_SHA256);
+
+        fun verify(key: PublicKey, data: ByteBuffer, signature: ByteArray): Boolean = try {
+            newSignature().run {
+                initVerify(key)
+                pss?.let { setParameter(it) }
+                update(data)
+                verify(signature)
+            }
+        } catch (error: GeneralSecurityException) {
+            throw SignatureException("Cannot verify $jcaName signature", error)
+        }
+
+        // Android names PSS per digest; a plain JVM only knows the generic RSASSA-PSS.
+        private fun newSignature(): Signature = try {
+            Signature.getInstance(jcaName)
+        } catch (missing: NoSuchAlgorithmException) {
+            if (pss == null) throw missing
+            Signature.getInstance("RSASSA-PSS")
+        }
+
+        companion object {
+            fun of(id: Int): SignatureAlgorithm? = values().firstOrNull { it.id == id }
+        }
+    }
+
+    companion object {
+        private const val V2_BLOCK_ID = 0x7109871a
+        private const val V3_BLOCK_ID = 0xf05368c0.toInt()
+        private const val V31_BLOCK_ID = 0x1b93ad61
+        // "APK Sig Block 42" as two little-endian longs.
+        private const val BLOCK_MAGIC_LO = 0x20676953204b5041L
+        private const val BLOCK_MAGIC_HI = 0x3234206b636f6c42L
+        private const val BLOCK_FOOTER_BYTES = 24
+        private const val EOCD_DIRECTORY_OFFSET = 16
+        private const val CHUNK_BYTES = 1024L * 1024
+        private const val CHUNK_PREFIX = 0xa5.toByte()
+        private const val TOP_PREFIX = 0x5a.toByte()
+
+        private fun pss(digest: String, mgf: MGF1ParameterSpec, salt: Int): PSSParameterSpec =
+            PSSParameterSpec(digest, "MGF1", mgf, salt, 1)
+
+        private fun read(channel: FileChannel, position: Long, bytes: Int): ByteBuffer {
+            val buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN)
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw ZipException("Unexpected end of APK")
+            }
+            buffer.flip()
+            return buffer
+        }
+
+        private fun slice(buffer: ByteBuffer, start: Int, end: Int): ByteBuffer {
+            val view = buffer.duplicate()
+            view.limit(end)
+            view.position(start)
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN)
+        }
+
+        private fun lengthPrefixed(buffer: ByteBuffer): ByteBuffer {
+            if (buffer.remaining() < 4) throw SignatureException("Truncated length prefix")
+            val length = buffer.int
+            if (length < 0 || length > buffer.remaining()) throw SignatureException("Length $length past the end of its record")
+            val value = slice(buffer, buffer.position(), buffer.position() + length)
+            buffer.position(buffer.position() + length)
+            return value
+        }
+
+        private fun bytes(buffer: ByteBuffer): ByteArray = ByteArray(buffer.remaining()).also { buffer.duplicate().get(it) }
+
+        private fun sha256(bytes: ByteArray): ByteArray = MessageDigest.getInstance("SHA-256").digest(bytes)
+    }
+}
@@ -0,0 +1,184 @@
+package com.miaadrajabi.downloader
+
+import java.util.Calendar
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.max
+import kotlin.math.min
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * 1. Consulted by the chunk read loops after every accepted read; suspends the reading
+ *    coroutine until the bytes fit the configured rate. Pausing or cancelling the download
+ *    cancels the wait.
+ */
+internal interface ReadThrottle {
+    suspend fun acquire(bytes: Long)
+}
+
+/**
+ * 2. Token bucket shared by every read it throttles. Each [acquire] takes a place in line
+ *    (the running total of requested bytes) and suspends until the refill has reached it, so
+ *    concurrent chunks are served in arrival order instead of racing for tokens. Waiting is a
+ *    cancellable timeout, never a spin or a parked thread, and [setRate] wakes waiters to
+ *    re-plan with the new rate. A cancelled wait hands its place back to the reads behind it.
+ */
+internal class TokenBucket(bytesPerSecond: Long? = null) {
+    private val lock = Any()
+    @Volatile private var rate = 0L
+    private var burst = 0L
+    private var requested = 0L
+    private var granted = 0.0
+    private var refilledAt = System.nanoTime()
+    private var rateChanged = CompletableDeferred<Unit>()
+
+    init {
+        setRate(bytesPerSecond)
+    }
+
+    val bytesPerSecond: Long?
+        get() = rate.takeIf { it > 0 }
+
+    /**
+     * 3. Changes the rate; null or a non-positive value removes the limit and releases waiters.
+     */
+    fun setRate(bytesPerSecond: Long?) = synchronized(lock) {
+        val next = bytesPerSecond?.takeIf { it > 0 } ?: 0L
+        refill(System.nanoTime())
+        if (next == rate) return@synchronized
+        if (next == 0L) granted = requested.toDouble()
+        rate = next
+        burst = max(next / BURST_FRACTION, MIN_BURST_BYTES)
+        rateChanged.complete(Unit)
+        rateChanged = CompletableDeferred()
+    }
+
+    suspend fun acquire(bytes: Long) {
+        if (rate <= 0L || bytes <= 0L) return
+        val place = synchronized(lock) {
+            refill(System.nanoTime())
+            requested += bytes
+            requested
+        }
+        var served = false
+        try {
+            while (true) {
+                val (waitMillis, changed) = synchronized(lock) {
+                    refill(System.nanoTime())
+                    if (rate <= 0L || granted + burst >= place) null
+                    else ((place - burst - granted) * MILLIS_PER_SECOND / rate).toLong() to rateChanged
+                } ?: break
+                withTimeoutOrNull(waitMillis.coerceAtLeast(1L)) { changed.await() }
+            }
+            served = true
+        } finally {
+            if (!served) synchronized(lock) {
+                granted = min(requested.toDouble(), granted + bytes)
+            }
+        }
+    }
+
+    private fun refill(now: Long) {
+        if (rate > 0L) {
+            // Idle time only banks up to the burst: granted never runs ahead of requested.
+            granted = min(requested.toDouble(), granted + (now - refilledAt) * rate / NANOS_PER_SECOND)
+        }
+        refilledAt = now
+    }
+
+    private companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+        private const val MILLIS_PER_SECOND = 1_000.0
+        // A quarter second of traffic may pass without waiting.
+        private const val BURST_FRACTION = 4L
+        private const val MIN_BURST_BYTES = 16L * 1024
+    }
+}
+
+/**
+ * 4. Bandwidth limits of one manager: a manager-wide bucket shared by all downloads and one
+ *    bucket per download. The manager-wide rate is, in order of precedence, the runtime value
+ *    from [setGlobalLimit], the active [BandwidthProfile] of [SchedulerConfig.bandwidthProfiles],
+ *    or [SchedulerConfig.maxBytesPerSecond]. Profiles are re-checked at most once a minute.
+ */
+internal class BandwidthLimiter(private val config: SchedulerConfig) {
+    private val global = TokenBucket()
+    private val downloads = ConcurrentHashMap<String, TokenBucket>()
+    @Volatile private var runtimeLimit: Long? = null
+    @Volatile private var hasRuntimeLimit = false
+    @Volatile private var nextProfileCheckAt = 0L
+
+    init {
+        refreshGlobal(System.currentTimeMillis())
+    }
+
+    /**
+     * 5. Throttle for one run of [handleId]. A limit set at runtime through [setDownloadLimit]
+     *    survives pause/resume; otherwise the request's own limit applies.
+     */
+    fun throttleFor(handleId: String, requestLimit: Long?): ReadThrottle {
+        val own = downloads.getOrPut(handleId) { TokenBucket(requestLimit) }
+        return object : ReadThrottle {
+            override suspend fun acquire(bytes: Long) {
+                // The download's own bucket first, so a slow download does not hold shared tokens.
+                own.acquire(bytes)
+                val now = System.currentTimeMillis()
+                if (now >= nextProfileCheckAt) refreshGlobal(now)
+                global.acquire(bytes)
+            }
+        }
+    }
+
+    /**
+     * 6. Overrides the manager-wide limit; 0 removes it, null returns to the configured one.
+     */
+    fun setGlobalLimit(bytesPerSecond: Long?) {
+        runtimeLimit = bytesPerSecond
+        hasRuntimeLimit = bytesPerSecond != null
+        refreshGlobal(System.currentTimeMillis())
+    }
+
+    /**
+     * 7. Changes the limit of one download, including its reads already waiting.
+     */
+    fun setDownloadLimit(handleId: String, bytesPerSecond: Long?) {
+        downloads.getOrPut(handleId) { TokenBucket() }.setRate(bytesPerSecond)
+    }
+
+    fun forget(handleId: String) {
+        downloads.remove(handleId)
+    }
+
+    private fun refreshGlobal(now: Long) {
+        nextProfileCheckAt = now + PROFILE_CHECK_INTERVAL_MS
+        val profile = activeProfile(now)
+        val limit = when {
+            hasRuntimeLimit -> runtimeLimit
+            profile != null -> profile.maxBytesPerSecond
+            else -> config.maxBytesPerSecond
+        }
+        global.setRate(limit)
+    }
+
+    private fun activeProfile(now: Long): BandwidthProfile? {
+        if (config.bandwidthProfiles.isEmpty()) return null
+        val calendar = Calendar.getInstance().apply { timeInMillis = now }
+        val minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE)
+        return config.bandwidthProfiles.firstOrNull { it.covers(minute) }
+    }
+
+    private fun BandwidthProfile.covers(minuteOfDay: Int): Boolean {
+        val start = startHour * 60 + startMinute
+        val end = endHour * 60 + endMinute
+        return when {
+            start == end -> true
+            start < end -> minuteOfDay in start until end
+            // Window across midnight, e.g. 22:00-06:00.
+            else -> minuteOfDay >= start || minuteOfDay < end
+        }
+    }
+
+    private companion object {
+        private const val PROFILE_CHECK_INTERVAL_MS = 60_000L
+    }
+}
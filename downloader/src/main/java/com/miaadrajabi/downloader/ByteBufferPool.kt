@@ -0,0 +1,66 @@
+package com.miaadrajabi.downloader
+
+import java.nio.ByteBuffer
+
+/**
+ * 1. Shared pool of I/O buffers grouped in power-of-two size classes (16 KB to 1 MB).
+ * 2. Heap and direct buffers are pooled separately; released buffers are only retained
+ *    while the total stays under [maxRetainedBytes], the rest is left to the GC.
+ */
+internal class ByteBufferPool(
+    private val maxRetainedBytes: Long
+) {
+
+    private val heapClasses = Array(CLASS_COUNT) { ArrayDeque<ByteBuffer>() }
+    private val directClasses = Array(CLASS_COUNT) { ArrayDeque<ByteBuffer>() }
+    private var retainedBytes = 0L
+
+    /**
+     * 3. Returns a cleared buffer with at least [size] bytes of capacity (clamped to the
+     *    largest class). Heap buffers are always array-backed.
+     */
+    fun acquire(size: Int, direct: Boolean = false): ByteBuffer {
+        val classIndex = classIndexFor(size)
+        val pooled = synchronized(this) {
+            classesFor(direct)[classIndex].removeLastOrNull()?.also {
+                retainedBytes -= it.capacity()
+            }
+        }
+        if (pooled != null) {
+            pooled.clear()
+            return pooled
+        }
+        val capacity = MIN_CLASS_SIZE shl classIndex
+        return if (direct) ByteBuffer.allocateDirect(capacity) else ByteBuffer.allocate(capacity)
+    }
+
+    /**
+     * 4. Hands a buffer back to the pool. Buffers that were not produced by [acquire] are ignored.
+     */
+    fun release(buffer: ByteBuffer) {
+        val capacity = buffer.capacity()
+        if (Integer.bitCount(capacity) != 1 || capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE) {
+            return
+        }
+        synchronized(this) {
+            if (retainedBytes + capacity > maxRetainedBytes) return
+            classesFor(buffer.isDirect)[classIndexFor(capacity)].addLast(buffer)
+            retainedBytes += capacity
+        }
+    }
+
+    private fun classesFor(direct: Boolean) = if (direct) directClasses else heapClasses
+
+    private fun classIndexFor(size: Int): Int {
+        val clamped = size.coerceIn(MIN_CLASS_SIZE, MAX_CLASS_SIZE)
+        val rounded = Integer.highestOneBit(clamped - 1) shl 1
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE)
+    }
+
+    companion object {
+        const val MIN_CLASS_SIZE = 16 * 1024
+        const val MAX_CLASS_SIZE = 1024 * 1024
+        private val CLASS_COUNT =
+            Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE) + 1
+    }
+}
@@ -0,0 +1,144 @@
+package com.miaadrajabi.downloader
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 1. Per-download record of every chunk's range and next offset, kept in primitive pages so
+ *    a chunk worker reports progress with a single long store instead of a new object.
+ * 2. [ChunkStateData] objects are only built by [snapshot], i.e. on pause, retry or persistence.
+ * 3. Chunk indexes are small and dense (planned chunks plus stolen tails), so they address
+ *    slots directly. Pages are never copied, only the page directory, so no store is lost
+ *    while another chunk is being recorded.
+ */
+internal class ChunkProgressLedger(initial: List<ChunkStateData> = emptyList()) {
+
+    @Volatile private var pages = arrayOfNulls<AtomicLongArray>(INITIAL_PAGES)
+    @Volatile private var maxIndex = -1
+
+    init {
+        initial.forEach { record(it) }
+    }
+
+    /**
+     * 4. Registers a chunk (or replaces its range) before any progress is reported for it.
+     */
+    @Synchronized
+    fun record(state: ChunkStateData) {
+        val page = pageFor(state.index, create = true)!!
+        val base = slotBase(state.index)
+        page.set(base + START, state.start)
+        page.set(base + END, state.endInclusive ?: NO_END)
+        page.set(base + NEXT, state.nextOffset)
+        if (state.index > maxIndex) maxIndex = state.index
+    }
+
+    /**
+     * 5. Hot path: publishes the next offset of a recorded chunk without allocating.
+     */
+    fun advance(index: Int, nextOffset: Long) {
+        pageFor(index, create = false)?.lazySet(slotBase(index) + NEXT, nextOffset)
+    }
+
+    /**
+     * 6. Moves the end of a recorded chunk, e.g. after its tail was handed to another worker.
+     */
+    fun shrink(index: Int, endInclusive: Long) {
+        pageFor(index, create = false)?.set(slotBase(index) + END, endInclusive)
+    }
+
+    fun snapshot(): List<ChunkStateData> {
+        val directory = pages
+        val states = ArrayList<ChunkStateData>()
+        for (index in 0..maxIndex) {
+            val page = directory.getOrNull(index / PAGE_SLOTS) ?: continue
+            val base = slotBase(index)
+            val start = page.get(base + START)
+            if (start == ABSENT) continue
+            val end = page.get(base + END)
+            states += ChunkStateData(index, start, end.takeUnless { it == NO_END }, page.get(base + NEXT))
+        }
+        return states
+    }
+
+    fun completedBytes(): Long {
+        val directory = pages
+        var total = 0L
+        for (index in 0..maxIndex) {
+            val page = directory.getOrNull(index / PAGE_SLOTS) ?: continue
+            val base = slotBase(index)
+            val start = page.get(base + START)
+            if (start == ABSENT) continue
+            total += (page.get(base + NEXT) - start).coerceAtLeast(0L)
+        }
+        return total
+    }
+
+    /**
+     * 7. End of the contiguous run of written bytes from offset 0: chunks are walked in file
+     *    order until the first one that is not finished. Allocates, so callers poll it rather
+     *    than calling it per read.
+     */
+    fun contiguousPrefix(): Long {
+        var prefix = 0L
+        for (state in snapshot().sortedBy { it.start }) {
+            if (state.start > prefix) break
+            prefix = maxOf(prefix, state.nextOffset)
+            val end = state.endInclusive ?: break
+            if (state.nextOffset <= end) break
+        }
+        return prefix
+    }
+
+    /**
+     * 8. Start of the contiguous run of written bytes that ends at [length], the mirror of
+     *    [contiguousPrefix]: chunks are walked from the end of the file until the first one
+     *    that is not finished. Returns [length] when nothing at the end is written yet.
+     */
+    fun contiguousSuffix(length: Long): Long {
+        var suffix = length
+        for (state in snapshot().sortedByDescending { it.start }) {
+            val end = state.endInclusive ?: break
+            if (end + 1 < suffix || state.nextOffset <= end) break
+            suffix = minOf(suffix, state.start)
+        }
+        return suffix
+    }
+
+    fun highestIndex(): Int = maxIndex
+
+    /**
+     * 9. Forgets every chunk, used when earlier progress no longer describes the remote file.
+     */
+    @Synchronized
+    fun clear() {
+        pages = arrayOfNulls(INITIAL_PAGES)
+        maxIndex = -1
+    }
+
+    private fun pageFor(index: Int, create: Boolean): AtomicLongArray? {
+        val pageIndex = index / PAGE_SLOTS
+        val directory = pages
+        directory.getOrNull(pageIndex)?.let { return it }
+        if (!create) return null
+        val grown = if (pageIndex < directory.size) directory else directory.copyOf(maxOf(pageIndex + 1, directory.size * 2))
+        val page = AtomicLongArray(PAGE_SLOTS * FIELDS).also { fresh ->
+            for (slot in 0 until PAGE_SLOTS) fresh.set(slot * FIELDS + START, ABSENT)
+        }
+        grown[pageIndex] = page
+        pages = grown
+        return page
+    }
+
+    private fun slotBase(index: Int): Int = (index % PAGE_SLOTS) * FIELDS
+
+    private companion object {
+        const val PAGE_SLOTS = 64
+        const val INITIAL_PAGES = 4
+        const val FIELDS = 3
+        const val START = 0
+        const val END = 1
+        const val NEXT = 2
+        const val ABSENT = -1L
+        const val NO_END = Long.MIN_VALUE
+    }
+}
@@ -2,29 +2,37 @@ package com.miaadrajabi.downloader
 
 import java.io.IOException
 import java.io.RandomAccessFile
-import java.nio.ByteBuffer
-import java.util.concurrent.atomic.AtomicLong
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.jvm.Volatile
 import kotlin.math.ceil
 import kotlin.math.max
 import kotlin.math.min
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Semaphore
-import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.Response
+import okhttp3.ResponseBody
 import android.util.Log
 
 /**
  * 1. Executes HTTP downloads with optional chunked range requests and progress callbacks.
  */
 internal class ChunkedDownloader(
-    private val client: OkHttpClient
+    private val client: OkHttpClient,
+    private val bufferPool: ByteBufferPool,
+    private val storageResolver: StorageResolver,
+    private val metadataCache: HttpMetadataCache,
+    private val progressTicker: ProgressTicker
 ) {
 
     suspend fun download(
@@ -36,145 +44,694 @@ internal class ChunkedDownloader(
         startOffset: Long = 0L,
         callTracker: CallTracker? = null,
         existingChunkStates: List<ChunkStateData> = emptyList(),
-        chunkStateUpdater: ((ChunkStateData) -> Unit)? = null
+        progressLedger: ChunkProgressLedger? = null,
+        validator: String? = null,
+        validatorUpdater: ((validator: String?, restarted: Boolean) -> Unit)? = null,
+        throttle: ReadThrottle? = null
     ): DownloadResult = withContext(Dispatchers.IO) {
-        // Reset captured Content-Type for this download
-        capturedContentType = null
-        
-        val totalBytes = fetchContentLength(request, callTracker)
-        
-        // Validate startOffset against actual file size
+        // The target is preallocated to its full size, so its length says nothing about how much
+        // was written. Only a file shorter than the saved progress tells something: it was
+        // deleted or truncated since, and none of the saved progress can be trusted.
         val actualFileSize = resolution.file.length()
-        val validatedOffset = if (startOffset > 0 && actualFileSize < startOffset) {
-            // File is smaller than expected, restart from actual file size
-            Log.w(TAG, "Resume offset ($startOffset) > file size ($actualFileSize), using file size")
-            actualFileSize
+        val savedEnd = max(startOffset, existingChunkStates.maxOfOrNull { it.nextOffset } ?: 0L)
+        val lost = savedEnd > 0 && actualFileSize < savedEnd
+        if (lost) {
+            Log.w(TAG, "Saved progress ($savedEnd) > file size ($actualFileSize), restarting")
+        }
+        val validatedOffset = if (lost) 0L else startOffset
+        val chunkStates = if (lost) emptyList() else existingChunkStates
+
+        val firstMissing = ChunkPlanner.firstMissingOffset(validatedOffset, chunkStates)
+        // Bytes already on disk are only reused while the remote validator still matches.
+        val resumeValidator = validator.takeIf { validatedOffset > 0 || chunkStates.isNotEmpty() }
+        // Calls are tracked per download so siblings can be cut off when ranges turn out unsupported.
+        val calls = callTracker ?: CallTracker()
+        val remote = if (hostOf(request.url) in rangelessHosts) {
+            openTransfer(request, 0L, null, calls, ranged = false)
         } else {
-            startOffset
+            // Fresh cached metadata lets every chunk start at once; it is checked on the first response.
+            metadataCache.get(request.url)
+                ?.takeIf { it.acceptsRanges && it.contentLength != null }
+                ?.takeIf { resumeValidator == null || it.validator == resumeValidator }
+                ?.let { RemoteFile(request.url, firstMissing, it, fromCache = true, response = null) }
+                ?: openTransfer(request, firstMissing, resumeValidator, calls)
+        }
+        Log.d(TAG, "Download: startOffset=$startOffset, actualFileSize=$actualFileSize, validatedOffset=$validatedOffset, restarted=${remote.restarted}, singleStream=${remote.singleStream}")
+        validatorUpdater?.invoke(remote.metadata.validator, remote.restarted || lost)
+        try {
+            transfer(
+                request,
+                resolution,
+                handle,
+                config,
+                listeners,
+                remote,
+                if (remote.restarted) 0L else validatedOffset,
+                if (remote.restarted) emptyList() else chunkStates,
+                calls,
+                progressLedger,
+                throttle
+            )
+        } catch (error: IOException) {
+            if (!remote.rangesIgnored) throw error
+            // Nothing a ranged chunk wrote can be trusted to line up; stream the whole file again.
+            Log.w(TAG, "${hostOf(request.url)} ignores Range; falling back to a single stream")
+            val single = openTransfer(request, 0L, null, calls, ranged = false)
+            validatorUpdater?.invoke(single.metadata.validator, true)
+            transfer(request, resolution, handle, config, listeners, single, 0L, emptyList(), calls, progressLedger, throttle)
         }
-        
-        Log.d(TAG, "Download: totalBytes=$totalBytes, startOffset=$startOffset, actualFileSize=$actualFileSize, validatedOffset=$validatedOffset")
-        val chunkPlans = ChunkPlanner.plan(totalBytes, config.chunking, validatedOffset, existingChunkStates)
+    }
+
+    private suspend fun transfer(
+        request: DownloadRequest,
+        resolution: StorageResolution,
+        handle: DownloadHandle,
+        config: DownloadConfig,
+        listeners: List<DownloadListener>,
+        remote: RemoteFile,
+        resumeOffset: Long,
+        resumeStates: List<ChunkStateData>,
+        callTracker: CallTracker,
+        progressLedger: ChunkProgressLedger?,
+        throttle: ReadThrottle?
+    ): DownloadResult = try {
+        val totalBytes = remote.metadata.contentLength
+        var checksum: String? = null
+        if (totalBytes != null) {
+            storageResolver.preallocate(resolution, totalBytes)
+        }
+        val chunking = if (remote.singleStream) {
+            config.chunking.copy(chunkCount = 1, preferParallel = false, adaptiveParallelism = false)
+        } else {
+            config.chunking
+        }
+        val chunkPlans = ChunkPlanner.plan(totalBytes, chunking, resumeOffset, resumeStates)
         if (chunkPlans.isEmpty()) {
             Log.d(TAG, "No chunk plans generated; nothing to download.")
-            return@withContext DownloadResult(totalBytes, null)
+        } else {
+            Log.d(TAG, "Chunk plans (total=$totalBytes): ${chunkPlans.map { "${it.index}:${it.start}-${it.endInclusive} resume=${it.resumeOffset}" }}")
+            progressLedger?.let { ledger ->
+                chunkPlans.forEach { plan ->
+                    ledger.record(plan.toState())
+                }
+            }
+            RandomAccessFile(resolution.file, "rw").use { raf ->
+                val progress = ProgressTracker(listeners, handle, totalBytes, resumeOffset)
+                progressTicker.register(progress)
+                val channel = raf.channel
+                val hashBuffer = if (config.integrity.verifyChecksum && request.expectedChecksum != null) {
+                    bufferPool.acquire(StreamingChecksum.BUFFER_BYTES)
+                } else {
+                    null
+                }
+                val hasher = hashBuffer?.let { StreamingChecksum(request.checksumAlgorithm, channel, it) }
+                val manifest = totalBytes?.let { total ->
+                    request.pieceManifest?.let { resolveManifest(it) }?.takeIf { PieceVerifier.matches(it, total) }
+                }
+                val pieceBuffer = manifest?.let { bufferPool.acquire(PieceVerifier.BUFFER_BYTES) }
+                val pieces = if (manifest != null && totalBytes != null && pieceBuffer != null) {
+                    PieceVerifier(manifest, totalBytes, channel, pieceBuffer)
+                } else {
+                    null
+                }
+                val tailCheck = if (config.integrity.verifyApkStructure && totalBytes != null &&
+                    FileIntegrityVerifier.isApkFile(resolution.file)
+                ) {
+                    ApkTailCheck(resolution.file, channel, totalBytes)
+                } else {
+                    null
+                }
+                val mappedOutput = if (chunking.writeMode == ChunkWriteMode.MEMORY_MAPPED && totalBytes != null) {
+                    // Mapping never grows the file; preallocation above already sized it.
+                    MappedOutput(channel, totalBytes).also { mappedOutputs[handle.id] = it }
+                } else {
+                    null
+                }
+                try {
+                    coroutineScope {
+                        val followers = if (progressLedger != null) {
+                            listOfNotNull(
+                                hasher?.let { launch { it.follow(progressLedger) } },
+                                pieces?.let { launch { it.follow(progressLedger) } },
+                                tailCheck?.let {
+                                    launch {
+                                        try {
+                                            it.follow(progressLedger)
+                                        } catch (invalid: IntegrityValidationException) {
+                                            // Chunk reads block; cancelling their calls unwinds them.
+                                            callTracker.cancelAll()
+                                            throw invalid
+                                        }
+                                    }
+                                }
+                            )
+                        } else {
+                            emptyList()
+                        }
+                        try {
+                            transferChunks(
+                                chunkTarget(request, remote.metadata),
+                                chunkPlans,
+                                remote,
+                                channel,
+                                progress,
+                                chunking,
+                                callTracker,
+                                progressLedger,
+                                mappedOutput,
+                                throttle
+                            )
+                        } finally {
+                            followers.forEach { it.cancel() }
+                        }
+                    }
+                    val repaired = pieces != null && repairPieces(
+                        pieces,
+                        chunkTarget(request, remote.metadata),
+                        resolution,
+                        remote,
+                        channel,
+                        progress,
+                        chunking,
+                        callTracker,
+                        mappedOutput,
+                        throttle
+                    )
+                    // Repaired pieces were hashed with their bad bytes; let verification re-read the file.
+                    checksum = if (repaired) null else hasher?.finish(totalBytes ?: channel.size())
+                } finally {
+                    hashBuffer?.let { bufferPool.release(it) }
+                    pieceBuffer?.let { bufferPool.release(it) }
+                    progressTicker.unregister(progress)
+                    mappedOutput?.let { output ->
+                        mappedOutputs.remove(handle.id, output)
+                        output.flush()
+                    }
+                }
+            }
         }
-        Log.d(TAG, "Chunk plans: ${chunkPlans.map { "${it.index}:${it.start}-${it.endInclusive} resume=${it.resumeOffset}" }}")
-        chunkStateUpdater?.let { updater ->
-            chunkPlans.forEach { plan ->
-                updater(plan.toState())
+        DownloadResult(totalBytes, remote.metadata.contentType, checksum)
+    } finally {
+        remote.close()
+    }
+
+    /**
+     * Re-downloads the pieces that failed [verifier] with their own Range requests, a few rounds
+     * at most. Returns whether anything was repaired; throws [IntegrityValidationException] when
+     * pieces stay bad or the server cannot serve ranges.
+     */
+    private suspend fun repairPieces(
+        verifier: PieceVerifier,
+        request: DownloadRequest,
+        resolution: StorageResolution,
+        remote: RemoteFile,
+        channel: FileChannel,
+        progress: ProgressTracker,
+        chunking: ChunkingConfig,
+        callTracker: CallTracker,
+        mappedOutput: MappedOutput?,
+        throttle: ReadThrottle?
+    ): Boolean {
+        var bad = verifier.finish()
+        if (bad.isEmpty()) return false
+        var round = 0
+        while (bad.isNotEmpty()) {
+            if (remote.singleStream || ++round > MAX_PIECE_REPAIR_ROUNDS) {
+                throw IntegrityValidationException(
+                    "Pieces $bad failed verification",
+                    bad.map { "Piece $it hash mismatch" },
+                    resolution.file
+                )
+            }
+            Log.w(TAG, "Re-downloading pieces $bad (round $round)")
+            val plans = bad.mapIndexed { index, piece ->
+                val range = verifier.rangeOf(piece)
+                // The bad bytes were counted once already.
+                progress.onBytes(0, -(range.last - range.first + 1))
+                ChunkPlan(index, range.first, range.last, range.first)
+            }
+            // Not recorded in the ledger: the pieces lie inside chunks it already counts as done.
+            transferChunks(request, plans, remote, channel, progress, chunking, callTracker, null, mappedOutput, throttle)
+            bad = verifier.recheck(bad)
+        }
+        return true
+    }
+
+    /**
+     * Returns [declared] with its hashes, fetching them from its manifest URL when needed. A
+     * manifest that cannot be fetched only disables piece repair.
+     */
+    private fun resolveManifest(declared: PieceManifest): PieceManifest? {
+        if (declared.pieceHashes.isNotEmpty()) return declared
+        val url = declared.manifestUrl ?: return null
+        return try {
+            client.newCall(Request.Builder().url(url).get().build()).execute().use { response ->
+                val body = response.body?.string()
+                if (!response.isSuccessful || body == null) {
+                    Log.w(TAG, "Piece manifest $url returned ${response.code}")
+                    null
+                } else {
+                    PieceVerifier.parse(body, declared)
+                }
             }
+        } catch (error: Exception) {
+            Log.w(TAG, "Unable to load piece manifest $url", error)
+            null
         }
-        RandomAccessFile(resolution.file, "rw").use { raf ->
-            val dispatcher = ProgressDispatcher(listeners, handle, totalBytes, validatedOffset)
-            val channel = raf.channel
-            if (config.chunking.preferParallel && chunkPlans.size > 1) {
+    }
+
+    /**
+     * Forces bytes written through memory-mapped windows of [handleId] to storage, so chunk
+     * offsets persisted right after this call only describe durable data.
+     */
+    fun flushMappedOutput(handleId: String) {
+        try {
+            mappedOutputs[handleId]?.flush()
+        } catch (error: IOException) {
+            Log.w(TAG, "Unable to flush mapped output for $handleId", error)
+        }
+    }
+
+    private suspend fun transferChunks(
+        request: DownloadRequest,
+        chunkPlans: List<ChunkPlan>,
+        remote: RemoteFile,
+        channel: FileChannel,
+        progress: ProgressTracker,
+        chunking: ChunkingConfig,
+        callTracker: CallTracker,
+        progressLedger: ChunkProgressLedger?,
+        mappedOutput: MappedOutput?,
+        throttle: ReadThrottle?
+    ) {
+        if (chunking.preferParallel && chunkPlans.size > 1) {
+            val segments = SegmentScheduler(chunkPlans, chunking, progressLedger)
+            val fetch: suspend (ChunkWork) -> Unit = { work ->
+                downloadChunk(
+                    request,
+                    work,
+                    remote,
+                    channel,
+                    progress,
+                    callTracker,
+                    progressLedger,
+                    chunking,
+                    mappedOutput,
+                    throttle
+                )
+            }
+            if (chunking.adaptiveParallelism) {
+                downloadAdaptive(segments, chunking, progress, fetch)
+            } else {
                 coroutineScope {
-                    val parallelism = min(config.chunking.chunkCount, chunkPlans.size)
-                    val semaphore = Semaphore(parallelism)
-                    val jobs = chunkPlans.map { plan ->
+                    val parallelism = min(chunking.chunkCount, chunkPlans.size)
+                    progress.parallelism = parallelism
+                    val workers = (0 until parallelism).map {
                         launch {
-                            semaphore.withPermit {
-                                downloadChunk(
-                                    request,
-                                    plan,
-                                    channel,
-                                    dispatcher,
-                                    callTracker,
-                                    chunkStateUpdater
-                                )
+                            while (true) {
+                                val work = segments.next() ?: break
+                                try {
+                                    fetch(work)
+                                } finally {
+                                    segments.finish(work)
+                                }
                             }
                         }
                     }
-                    jobs.joinAll()
+                    workers.joinAll()
                 }
-            } else {
-                chunkPlans.forEach { plan ->
-                    downloadChunk(
-                        request,
-                        plan,
-                        channel,
-                        dispatcher,
-                        callTracker,
-                        chunkStateUpdater
-                    )
+            }
+        } else {
+            chunkPlans.forEach { plan ->
+                downloadChunk(
+                    request,
+                    ChunkWork(plan),
+                    remote,
+                    channel,
+                    progress,
+                    callTracker,
+                    progressLedger,
+                    chunking,
+                    mappedOutput,
+                    throttle
+                )
+            }
+        }
+    }
+
+    /**
+     * Runs the segment pool with a worker count steered by [ParallelismController]. A sampler
+     * coroutine measures aggregate throughput once per window, spawns workers while the
+     * target grows and lets surplus workers retire after their current chunk.
+     */
+    private suspend fun downloadAdaptive(
+        segments: SegmentScheduler,
+        config: ChunkingConfig,
+        progress: ProgressTracker,
+        fetch: suspend (ChunkWork) -> Unit
+    ) = coroutineScope {
+        val controller = ParallelismController(config)
+        val active = AtomicInteger(0)
+        progress.parallelism = controller.target
+
+        fun spawnWorker() {
+            active.incrementAndGet()
+            launch {
+                var retired = false
+                try {
+                    while (!retired) {
+                        val work = segments.next() ?: break
+                        try {
+                            fetch(work)
+                        } catch (throttled: ThrottledResponseException) {
+                            if (!controller.onThrottled()) throw throttled
+                            segments.requeue(work)
+                            progress.parallelism = controller.target
+                            Log.d(TAG, "Chunk ${work.index} throttled (${throttled.code}); parallelism=${controller.target}")
+                            delay(throttled.retryAfterMillis ?: THROTTLE_BACKOFF_MS)
+                        } finally {
+                            segments.finish(work)
+                        }
+                        retired = controller.tryRetire(active)
+                    }
+                } finally {
+                    if (!retired) active.decrementAndGet()
                 }
             }
         }
-        
-        // Extract Content-Type from the first chunk response
-        val contentType = extractContentType(request, callTracker)
-        DownloadResult(totalBytes, contentType)
+
+        repeat(controller.target) { spawnWorker() }
+        while (!segments.isDrained()) {
+            delay(ParallelismController.SAMPLE_WINDOW_MS)
+            controller.sample(progress.downloadedBytes(), System.currentTimeMillis())
+            progress.parallelism = controller.target
+            while (active.get() < controller.target && segments.hasPending()) {
+                spawnWorker()
+            }
+        }
     }
 
-    private fun fetchContentLength(request: DownloadRequest, callTracker: CallTracker?): Long? {
-        val headRequest = baseRequestBuilder(request).head().build()
-        return try {
-            val call = client.newCall(headRequest)
-            callTracker?.register(call)
-            call.execute().use { response ->
-                when {
-                    response.isSuccessful -> response.header("Content-Length")?.toLongOrNull()
-                    response.code == 405 || response.code == 501 -> null
-                    else -> throw IOException("HEAD failed with code ${response.code}")
+    /**
+     * Issues the first GET of a download with an open-ended range starting at [offset]. The
+     * size comes from `Content-Range` (or `Content-Length` for a full response) and the body
+     * stays open so the chunk starting at [offset] streams from it without another round trip.
+     * With a [validator] the range is conditional: if the file changed, the server answers
+     * 200 with the whole new file, which then restarts the download from byte 0. Any other
+     * 200 means the host ignores Range; it is remembered and the body becomes a single stream.
+     * [ranged] = false asks for the whole file outright.
+     */
+    private fun openTransfer(
+        request: DownloadRequest,
+        offset: Long,
+        validator: String?,
+        callTracker: CallTracker,
+        ranged: Boolean = true
+    ): RemoteFile {
+        val builder = baseRequestBuilder(request)
+        if (ranged) {
+            builder.addHeader("Range", "bytes=${offset}-")
+            validator?.let { builder.addHeader("If-Range", it) }
+        }
+        val call = client.newCall(builder.get().build())
+        callTracker.register(call)
+        val response = call.execute()
+        when {
+            response.code == 200 -> {
+                val metadata = HttpMetadata.from(response, extractTotalBytes(response, 0L))
+                val changed = validator != null && offset > 0 && metadata.validator != validator
+                if (changed) {
+                    Log.w(TAG, "Remote file changed since $validator; restarting from byte 0")
+                    if (metadata.contentLength != null) {
+                        metadataCache.put(request.url, metadata)
+                    }
+                } else if (ranged) {
+                    rangelessHosts += hostOf(request.url)
                 }
+                // The body starts at byte 0 whatever was asked for, so saved progress is void.
+                return RemoteFile(
+                    request.url,
+                    0L,
+                    metadata,
+                    fromCache = false,
+                    response = response,
+                    restarted = true,
+                    singleStream = !changed
+                )
             }
-        } catch (_: IOException) {
-            null
+            response.code == 206 && contentRangeStart(response) != offset -> {
+                response.close()
+                throw IOException("Content-Range ${response.header("Content-Range")} does not start at $offset")
+            }
+            response.code == 416 -> {
+                // Nothing left past offset; the server still reports the size as bytes */total.
+                val totalBytes = response.header("Content-Range")?.substringAfterLast('/')?.toLongOrNull()
+                response.close()
+                totalBytes ?: throw IOException("Range $offset- not satisfiable")
+                return RemoteFile(request.url, offset, HttpMetadata.from(response, totalBytes), fromCache = false, response = null)
+            }
+            response.code == 429 || response.code == 503 -> {
+                response.close()
+                throw ThrottledResponseException(
+                    response.code,
+                    response.header("Retry-After")?.toLongOrNull()?.let { it * 1000 },
+                    "Download throttled with code ${response.code}"
+                )
+            }
+            !response.isSuccessful -> {
+                response.close()
+                throw IOException("Download failed with code ${response.code}")
+            }
+        }
+        val metadata = HttpMetadata.from(response, extractTotalBytes(response, offset))
+        if (metadata.contentLength != null) {
+            metadataCache.put(request.url, metadata)
+        }
+        return RemoteFile(request.url, offset, metadata, fromCache = false, response = response)
+    }
+
+    /**
+     * A ranged chunk response must be a 206 whose Content-Range starts where the chunk does.
+     * A 200 that is not explained by a changed validator means the server ignored Range: the
+     * host is remembered, sibling calls are cancelled and the download falls back to one stream.
+     */
+    private fun checkRangeResponse(
+        remote: RemoteFile,
+        response: Response,
+        work: ChunkWork,
+        rangeStart: Long,
+        callTracker: CallTracker
+    ) {
+        if (response.code == 206) {
+            if (contentRangeStart(response) != rangeStart) {
+                throw IOException("Chunk ${work.index}: Content-Range ${response.header("Content-Range")} does not start at $rangeStart")
+            }
+            return
+        }
+        // A full body is still correct for a chunk at offset 0; claiming stops at its end.
+        if (rangeStart == 0L) return
+        val validator = remote.metadata.validator
+        if (validator != null && HttpMetadata.from(response, null).validator.let { it != null && it != validator }) {
+            // Persisted offsets now describe another file; the next attempt's opening
+            // request sees the same 200 and restarts from byte 0.
+            metadataCache.invalidate(remote.key)
+            throw IOException("Remote file changed while downloading chunk ${work.index}")
         }
+        remote.rangesIgnored = true
+        rangelessHosts += hostOf(remote.key)
+        metadataCache.invalidate(remote.key)
+        callTracker.cancelAll()
+        throw IOException("Server ignored Range for chunk ${work.index}")
     }
 
-    private var capturedContentType: String? = null
+    private fun contentRangeStart(response: Response): Long? =
+        response.header("Content-Range")
+            ?.substringAfter("bytes ", "")
+            ?.substringBefore('-')
+            ?.trim()
+            ?.toLongOrNull()
+
+    private fun hostOf(url: String): String = url.toHttpUrlOrNull()?.host ?: url
+
+    /**
+     * Chunks go straight to the last redirect target, unless that would send the caller's
+     * headers (often credentials) to a host the original URL does not point at.
+     */
+    private fun chunkTarget(request: DownloadRequest, metadata: HttpMetadata): DownloadRequest {
+        if (metadata.finalUrl == request.url) return request
+        val sameHost = metadata.finalUrl.toHttpUrlOrNull()?.host == request.url.toHttpUrlOrNull()?.host
+        return if (sameHost || request.headers.isEmpty()) request.copy(url = metadata.finalUrl) else request
+    }
+
+    /**
+     * Cached metadata is only trusted until a chunk response disagrees with it: a different
+     * size or ETag drops the entry and fails the attempt, so the retry probes the server.
+     * The first matching response refreshes the entry.
+     */
+    private fun revalidate(remote: RemoteFile, response: Response, rangeStart: Long) {
+        if (!remote.fromCache) return
+        val cached = remote.metadata
+        val totalBytes = extractTotalBytes(response, rangeStart)
+        val etag = response.header("ETag")
+        val changed = (totalBytes != null && totalBytes != cached.contentLength) ||
+            (etag != null && cached.etag != null && etag != cached.etag)
+        if (changed) {
+            metadataCache.invalidate(remote.key)
+            throw IOException("Remote file changed since its metadata was cached")
+        }
+        if (remote.markRevalidated()) {
+            metadataCache.put(remote.key, HttpMetadata.from(response, totalBytes ?: cached.contentLength))
+        }
+    }
+
+    private val mappedOutputs = ConcurrentHashMap<String, MappedOutput>()
+    private val rangelessHosts: MutableSet<String> = ConcurrentHashMap.newKeySet()
     
-    private fun downloadChunk(
+    private suspend fun downloadChunk(
         request: DownloadRequest,
-        plan: ChunkPlan,
-        channel: java.nio.channels.FileChannel,
-        dispatcher: ProgressDispatcher,
-        callTracker: CallTracker?,
-        chunkStateUpdater: ((ChunkStateData) -> Unit)?
+        work: ChunkWork,
+        remote: RemoteFile,
+        channel: FileChannel,
+        progress: ProgressTracker,
+        callTracker: CallTracker,
+        progressLedger: ChunkProgressLedger?,
+        chunking: ChunkingConfig,
+        mappedOutput: MappedOutput?,
+        throttle: ReadThrottle?
     ) {
-        val builder = baseRequestBuilder(request)
-        val rangeStart = plan.resumeOffset
-        if (plan.endInclusive != null) {
-            builder.addHeader("Range", "bytes=${rangeStart}-${plan.endInclusive}")
-        } else if (rangeStart > 0) {
-            builder.addHeader("Range", "bytes=${rangeStart}-")
-        }
-        val httpRequest = builder.get().build()
-        val call = client.newCall(httpRequest)
-        callTracker?.register(call)
-        call.execute().use { response ->
+        val rangeStart = work.resumeOffset
+        // The opening response is open-ended; claiming stops the transfer at this chunk's end.
+        val opened = remote.take(rangeStart)
+        val ranged = opened == null && (work.endInclusive != null || rangeStart > 0)
+        val conditional = ranged && rangeStart > 0 && remote.metadata.validator != null
+        val chunkResponse = opened ?: run {
+            val builder = baseRequestBuilder(request)
+            val requestedEnd = work.endInclusive
+            if (requestedEnd != null) {
+                builder.addHeader("Range", "bytes=${rangeStart}-${requestedEnd}")
+            } else if (rangeStart > 0) {
+                builder.addHeader("Range", "bytes=${rangeStart}-")
+            }
+            if (conditional) {
+                builder.addHeader("If-Range", remote.metadata.validator!!)
+            }
+            val call = client.newCall(builder.get().build())
+            callTracker.register(call)
+            call.execute()
+        }
+        chunkResponse.use { response ->
+            if (response.code == 429 || response.code == 503) {
+                throw ThrottledResponseException(
+                    response.code,
+                    response.header("Retry-After")?.toLongOrNull()?.let { it * 1000 },
+                    "Chunk ${work.index} throttled with code ${response.code}"
+                )
+            }
             if (!response.isSuccessful) {
-                throw IOException("Download failed for chunk ${plan.index} with code ${response.code}")
-            }
-            // Capture Content-Type from first chunk (usually all chunks have same type)
-            if (capturedContentType == null) {
-                capturedContentType = response.header("Content-Type")
-            }
-            dispatcher.updateTotalIfAbsent(extractTotalBytes(response, plan))
-            val body = response.body ?: throw IOException("Empty response body for chunk ${plan.index}")
-            body.byteStream().use { source ->
-                val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-                var position = rangeStart
-                chunkStateUpdater?.invoke(plan.toState(position))
-                var read = source.read(buffer)
+                if (remote.fromCache) metadataCache.invalidate(remote.key)
+                throw IOException("Download failed for chunk ${work.index} with code ${response.code}")
+            }
+            if (ranged) {
+                checkRangeResponse(remote, response, work, rangeStart, callTracker)
+            }
+            revalidate(remote, response, rangeStart)
+            progress.updateTotalIfAbsent(extractTotalBytes(response, work.start))
+            val body = response.body ?: throw IOException("Empty response body for chunk ${work.index}")
+            progressLedger?.advance(work.index, rangeStart)
+            val position = when {
+                mappedOutput != null -> mappedOutput.write(rangeStart, chunking.mappedWindowBytes) { sink ->
+                    transferSegments(body, work, sink, progress, progressLedger, throttle)
+                }
+                chunking.writeMode == ChunkWriteMode.STREAM_COPY ->
+                    copyStream(body, work, channel, rangeStart, chunking.bufferSizeBytes, progress, progressLedger, throttle)
+                else ->
+                    transferSegments(body, work, FileChannelSink(channel, rangeStart), progress, progressLedger, throttle)
+            }
+            val completionOffset = work.endInclusive?.let { end ->
+                if (end == Long.MAX_VALUE) Long.MAX_VALUE else end + 1
+            } ?: position
+            // The file is preallocated, so its length no longer reveals a short transfer.
+            if (completionOffset != Long.MAX_VALUE && position < completionOffset) {
+                throw IOException("Chunk ${work.index} ended at $position before $completionOffset")
+            }
+            progressLedger?.advance(work.index, completionOffset)
+        }
+    }
+
+    /**
+     * Hands Okio's already-filled segments straight to a positional sink, so bytes are never
+     * copied into an intermediate array. Returns the next file offset.
+     */
+    private suspend fun transferSegments(
+        body: ResponseBody,
+        work: ChunkWork,
+        sink: PositionalSink,
+        progress: ProgressTracker,
+        progressLedger: ChunkProgressLedger?,
+        throttle: ReadThrottle?
+    ): Long {
+        body.source().use { source ->
+            val buffered = source.buffer
+            while (!source.exhausted()) {
+                val available = min(buffered.size, Int.MAX_VALUE.toLong()).toInt()
+                // The range may have shrunk because an idle worker stole its tail.
+                val accepted = work.claim(available)
+                if (accepted > 0) {
+                    sink.write(buffered, accepted.toLong())
+                    progress.onBytes(work.index, accepted.toLong())
+                    progressLedger?.advance(work.index, sink.position)
+                    // Waiting here also holds back the next read, so the socket backs up too.
+                    throttle?.acquire(accepted.toLong())
+                }
+                if (accepted < available || work.isFullyClaimed()) break
+            }
+        }
+        return sink.position
+    }
+
+    /**
+     * Classic copy loop through [ResponseBody.byteStream] using a pooled buffer. Returns the
+     * next file offset.
+     */
+    private suspend fun copyStream(
+        body: ResponseBody,
+        work: ChunkWork,
+        channel: FileChannel,
+        startOffset: Long,
+        bufferSize: Int,
+        progress: ProgressTracker,
+        progressLedger: ChunkProgressLedger?,
+        throttle: ReadThrottle?
+    ): Long {
+        var position = startOffset
+        body.byteStream().use { source ->
+            val buffer = bufferPool.acquire(bufferSize)
+            try {
+                val array = buffer.array()
+                val arrayOffset = buffer.arrayOffset()
+                val readSize = min(bufferSize, buffer.capacity())
+                var read = source.read(array, arrayOffset, readSize)
                 while (read != -1) {
-                    val byteBuffer = ByteBuffer.wrap(buffer, 0, read)
-                    while (byteBuffer.hasRemaining()) {
-                        channel.write(byteBuffer, position)
+                    // The range may have shrunk because an idle worker stole its tail.
+                    val accepted = work.claim(read)
+                    if (accepted > 0) {
+                        buffer.clear()
+                        buffer.limit(accepted)
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, position + buffer.position())
+                        }
+                        progress.onBytes(work.index, accepted.toLong())
+                        position += accepted
+                        progressLedger?.advance(work.index, position)
+                        throttle?.acquire(accepted.toLong())
                     }
-                    dispatcher.onBytes(plan.index, read.toLong())
-                    position += read
-                    chunkStateUpdater?.invoke(plan.toState(position))
-                    read = source.read(buffer)
+                    if (accepted < read || work.isFullyClaimed()) break
+                    read = source.read(array, arrayOffset, readSize)
                 }
-                val completionOffset = plan.endInclusive?.let { end ->
-                    if (end == Long.MAX_VALUE) Long.MAX_VALUE else end + 1
-                } ?: position
-                chunkStateUpdater?.invoke(plan.toState(completionOffset))
+            } finally {
+                bufferPool.release(buffer)
             }
         }
+        return position
     }
 
     private fun baseRequestBuilder(request: DownloadRequest): Request.Builder {
@@ -201,7 +758,196 @@ internal class ChunkedDownloader(
             ChunkStateData(index, start, endInclusive, nextOffset)
     }
 
+    /**
+     * Metadata of the remote file for one download, either cached under [key] or read from
+     * the opening GET. The opening body is handed out once to the chunk that resumes at
+     * [offset]. Content-Type is kept here so concurrent downloads never mix it up.
+     * [restarted] means earlier progress is void; [singleStream] that the body is the whole
+     * file from a host that ignores Range.
+     */
+    private class RemoteFile(
+        val key: String,
+        val offset: Long,
+        val metadata: HttpMetadata,
+        val fromCache: Boolean,
+        response: Response?,
+        val restarted: Boolean = false,
+        val singleStream: Boolean = false
+    ) {
+        private val pending = AtomicReference(response)
+        @Volatile var rangesIgnored = false
+        private val revalidated = AtomicBoolean(false)
+
+        fun take(resumeOffset: Long): Response? =
+            if (resumeOffset == offset) pending.getAndSet(null) else null
+
+        fun markRevalidated(): Boolean = revalidated.compareAndSet(false, true)
+
+        fun close() {
+            pending.getAndSet(null)?.close()
+        }
+    }
+
+    /**
+     * Live memory-mapped sinks of one download, tracked so pause and completion can force them.
+     */
+    private class MappedOutput(
+        private val channel: FileChannel,
+        private val fileLength: Long
+    ) {
+        private val sinks = ConcurrentHashMap.newKeySet<MappedRegionSink>()
+
+        suspend fun write(position: Long, windowBytes: Long, block: suspend (PositionalSink) -> Long): Long {
+            val sink = MappedRegionSink(channel, position, fileLength, windowBytes)
+            sinks += sink
+            try {
+                return block(sink)
+            } finally {
+                sinks -= sink
+                sink.close()
+            }
+        }
+
+        fun flush() {
+            sinks.forEach { it.flush() }
+            if (channel.isOpen) channel.force(false)
+        }
+    }
+
+    /**
+     * Mutable view of a [ChunkPlan] while it is being transferred. The end of the range can
+     * shrink when [SegmentScheduler] hands its tail to another worker, so every read claims
+     * its bytes under the same lock used for splitting.
+     */
+    private class ChunkWork(plan: ChunkPlan) {
+        val index = plan.index
+        val start = plan.start
+        val resumeOffset = plan.resumeOffset
+        private val startedAt = System.currentTimeMillis()
+        private var claimedUntil = plan.resumeOffset
+        @Volatile var endInclusive: Long? = plan.endInclusive
+            private set
+
+        @Synchronized
+        fun claim(read: Int): Int {
+            val end = endInclusive
+            val accepted = if (end == null) read else min(read.toLong(), max(0L, end + 1 - claimedUntil)).toInt()
+            claimedUntil += accepted
+            return accepted
+        }
+
+        /**
+         * True once every byte up to [endInclusive] is claimed, so an open-ended response can
+         * be abandoned without blocking on bytes that belong to the next chunk.
+         */
+        @Synchronized
+        fun isFullyClaimed(): Boolean {
+            val end = endInclusive ?: return false
+            return end != Long.MAX_VALUE && claimedUntil > end
+        }
+
+        /**
+         * Estimated milliseconds until this chunk finishes at its current rate, or null
+         * before the first byte arrives.
+         */
+        @Synchronized
+        fun remainingMillis(now: Long): Double? {
+            val end = endInclusive ?: return null
+            val remaining = end + 1 - claimedUntil
+            val transferred = claimedUntil - resumeOffset
+            if (remaining <= 0L || transferred <= 0L) return null
+            val elapsed = (now - startedAt).coerceAtLeast(1L)
+            return remaining * elapsed.toDouble() / transferred
+        }
+
+        /**
+         * Gives away the upper half of the unclaimed range, or null when it is too small.
+         */
+        @Synchronized
+        fun split(minBytes: Long, newIndex: Int): ChunkPlan? {
+            val end = endInclusive ?: return null
+            if (end == Long.MAX_VALUE) return null
+            val remaining = end + 1 - claimedUntil
+            if (remaining < minBytes * 2) return null
+            val stolenStart = claimedUntil + remaining / 2
+            endInclusive = stolenStart - 1
+            return ChunkPlan(newIndex, stolenStart, end, stolenStart)
+        }
+    }
+
+    /**
+     * Hands chunk plans to a fixed pool of workers. Once the initial plans are exhausted,
+     * an idle worker takes half of the remaining range from the in-flight chunk that is
+     * expected to finish last, so a single slow connection no longer holds up completion.
+     */
+    private class SegmentScheduler(
+        plans: List<ChunkPlan>,
+        private val config: ChunkingConfig,
+        private val progressLedger: ChunkProgressLedger?
+    ) {
+        private val pending = ArrayDeque(plans)
+        private val inFlight = mutableListOf<ChunkWork>()
+        // Completed chunks stay in the ledger without being planned again; never reuse their index.
+        private var nextIndex = max(plans.maxOfOrNull { it.index } ?: -1, progressLedger?.highestIndex() ?: -1) + 1
+        private val minStealBytes = max(config.minChunkSizeBytes / 2, MIN_STEAL_BYTES)
+
+        @Synchronized
+        fun next(): ChunkWork? {
+            val plan = pending.removeFirstOrNull() ?: steal() ?: return null
+            return ChunkWork(plan).also { inFlight += it }
+        }
+
+        @Synchronized
+        fun finish(work: ChunkWork) {
+            inFlight -= work
+        }
+
+        /**
+         * Puts a chunk that was rejected before transferring anything back at the head of
+         * the queue so the next available worker retries it.
+         */
+        @Synchronized
+        fun requeue(work: ChunkWork) {
+            if (inFlight.remove(work)) {
+                pending.addFirst(ChunkPlan(work.index, work.start, work.endInclusive, work.resumeOffset))
+            }
+        }
+
+        @Synchronized
+        fun hasPending(): Boolean = pending.isNotEmpty() || inFlight.isNotEmpty()
+
+        @Synchronized
+        fun isDrained(): Boolean = pending.isEmpty() && inFlight.isEmpty()
+
+        private fun steal(): ChunkPlan? {
+            if (!config.workStealing) return null
+            val now = System.currentTimeMillis()
+            val victim = inFlight
+                .mapNotNull { work -> work.remainingMillis(now)?.let { work to it } }
+                .maxByOrNull { it.second }
+                ?.first
+                ?: return null
+            val stolen = victim.split(minStealBytes, nextIndex) ?: return null
+            nextIndex++
+            progressLedger?.let { ledger ->
+                ledger.record(stolen.toState())
+                ledger.shrink(victim.index, stolen.start - 1)
+            }
+            Log.d(TAG, "Chunk ${victim.index} split: ${stolen.index}:${stolen.start}-${stolen.endInclusive}")
+            return stolen
+        }
+    }
+
     private object ChunkPlanner {
+        /**
+         * First byte still missing before the size is known, i.e. where the opening request
+         * starts. Persisted states are planned against an unbounded length for this.
+         */
+        fun firstMissingOffset(startOffset: Long, existingStates: List<ChunkStateData>): Long {
+            if (existingStates.isEmpty()) return max(0L, startOffset)
+            return planFromStates(Long.MAX_VALUE, existingStates).firstOrNull()?.resumeOffset ?: 0L
+        }
+
         fun plan(
             totalBytes: Long?,
             config: ChunkingConfig,
@@ -213,18 +959,19 @@ internal class ChunkedDownloader(
                 return listOf(ChunkPlan(index = 0, start = adjustedStart, endInclusive = null, resumeOffset = adjustedStart))
             }
 
-            val ranges = buildRanges(totalBytes, config)
             return if (existingStates.isNotEmpty()) {
-                planFromStates(ranges, existingStates)
+                planFromStates(totalBytes, existingStates)
             } else {
-                planFromOffset(ranges, startOffset, totalBytes)
+                planFromOffset(buildRanges(totalBytes, config), startOffset, totalBytes)
             }
         }
 
         private fun buildRanges(totalBytes: Long, config: ChunkingConfig): List<ChunkRange> {
             val minChunk = max(config.minChunkSizeBytes, 64 * 1024L)
-            val idealChunkSize = max(minChunk, totalBytes / config.chunkCount)
-            val estimatedCount = max(1, min(config.chunkCount, ceil(totalBytes / idealChunkSize.toDouble()).toInt()))
+            // Adaptive mode plans for the upper bound so added workers find queued ranges.
+            val chunkCount = if (config.adaptiveParallelism) config.maxParallelism else config.chunkCount
+            val idealChunkSize = max(minChunk, totalBytes / chunkCount)
+            val estimatedCount = max(1, min(chunkCount, ceil(totalBytes / idealChunkSize.toDouble()).toInt()))
 
             val ranges = mutableListOf<ChunkRange>()
             var cursor = 0L
@@ -276,131 +1023,145 @@ internal class ChunkedDownloader(
             return plans
         }
 
+        /**
+         * Persisted states are authoritative because work stealing may have split the
+         * original ranges. Any gap they leave (e.g. a stolen range not yet recorded when the
+         * snapshot was taken) is planned again under a fresh index.
+         */
         private fun planFromStates(
-            ranges: List<ChunkRange>,
+            totalBytes: Long,
             existingStates: List<ChunkStateData>
         ): List<ChunkPlan> {
-            val stateMap = existingStates.associateBy { it.index }
             val plans = mutableListOf<ChunkPlan>()
-            ranges.forEach { range ->
-                val state = stateMap[range.index]
-                val resume = state?.nextOffset ?: range.start
-                val endExclusive = range.endInclusive?.let { end ->
+            var nextIndex = existingStates.maxOf { it.index } + 1
+            var covered = 0L
+            existingStates.sortedBy { it.start }.forEach { state ->
+                if (state.start > covered) {
+                    plans += ChunkPlan(nextIndex++, covered, state.start - 1, covered)
+                }
+                val endExclusive = state.endInclusive?.let { end ->
                     if (end == Long.MAX_VALUE) Long.MAX_VALUE else end + 1
                 } ?: Long.MAX_VALUE
-                val clamped = resume.coerceIn(range.start, endExclusive)
-                if (clamped >= endExclusive) {
-                    return@forEach
+                val clamped = state.nextOffset.coerceIn(state.start, endExclusive)
+                if (clamped < endExclusive) {
+                    plans += ChunkPlan(state.index, state.start, state.endInclusive, clamped)
                 }
-                plans += ChunkPlan(range.index, range.start, range.endInclusive, clamped)
+                covered = max(covered, endExclusive)
             }
-            return plans
+            if (covered < totalBytes) {
+                plans += ChunkPlan(nextIndex, covered, totalBytes - 1, covered)
+            }
+            return plans.sortedBy { it.start }
         }
     }
 
-    private class ProgressDispatcher(
-        private val listeners: List<DownloadListener>,
-        private val handle: DownloadHandle,
-        totalBytes: Long?,
-        startOffset: Long
-    ) {
-        private val downloaded = AtomicLong(startOffset.coerceAtLeast(0L))
-        private var lastTimestamp = System.currentTimeMillis()
-        private var lastBytes = downloaded.get()
-        private var smoothedSpeed = 0.0
-        @Volatile private var totalBytesSnapshot: Long? = totalBytes
-        private var lastEmissionTime = System.currentTimeMillis()
-
-        fun updateTotalIfAbsent(value: Long?) {
-            if (value == null || value <= 0) return
-            val current = totalBytesSnapshot
-            if (current == null || current <= 0) {
-                synchronized(this) {
-                    val inner = totalBytesSnapshot
-                    if (inner == null || inner <= 0) {
-                        totalBytesSnapshot = value
-                    }
+    /**
+     * AIMD controller for the number of concurrent connections. It probes upwards one
+     * connection at a time while aggregate throughput keeps improving, undoes a probe that
+     * did not pay off, and halves the target on throttling responses or a throughput drop.
+     */
+    private class ParallelismController(config: ChunkingConfig) {
+        private val minParallelism = config.minParallelism.coerceAtLeast(1)
+        private val maxParallelism = config.maxParallelism.coerceAtLeast(minParallelism)
+        @Volatile var target = minParallelism
+            private set
+        private var lastBytes = -1L
+        private var lastSampleAt = 0L
+        private var lastThroughput = 0.0
+        private var probing = false
+        private var holdWindows = 0
+
+        @Synchronized
+        fun sample(bytes: Long, now: Long) {
+            if (lastBytes < 0) {
+                lastBytes = bytes
+                lastSampleAt = now
+                return
+            }
+            val elapsed = (now - lastSampleAt).coerceAtLeast(1L)
+            val throughput = (bytes - lastBytes) * 1000.0 / elapsed
+            lastBytes = bytes
+            lastSampleAt = now
+            val previous = lastThroughput
+            lastThroughput = throughput
+            when {
+                holdWindows > 0 -> holdWindows--
+                probing && throughput >= previous * (1 + GROWTH_THRESHOLD) -> {
+                    if (target < maxParallelism) target++ else probing = false
+                }
+                probing -> {
+                    target = max(minParallelism, target - 1)
+                    probing = false
+                    holdWindows = PROBE_BACKOFF_WINDOWS
+                }
+                throughput < previous * (1 - DECLINE_THRESHOLD) -> {
+                    target = max(minParallelism, target / 2)
+                    holdWindows = 1
+                }
+                target < maxParallelism -> {
+                    target++
+                    probing = true
                 }
             }
         }
 
-        fun onBytes(chunkIndex: Int, delta: Long) {
-            val total = downloaded.addAndGet(delta)
-            val now = System.currentTimeMillis()
-            val elapsedMs = (now - lastTimestamp).coerceAtLeast(1)
-            val bytesDelta = total - lastBytes
-            val rawSpeed = (bytesDelta * 1000.0) / elapsedMs
-            smoothedSpeed = if (smoothedSpeed <= 0.0) rawSpeed else (SMOOTHING_ALPHA * rawSpeed) + ((1 - SMOOTHING_ALPHA) * smoothedSpeed)
-            lastTimestamp = now
-            lastBytes = total
-
-            val totalBytes = totalBytesSnapshot
-            val remaining = totalBytes?.let { max(0L, it - total) }
-            val percent = totalBytes?.takeIf { it > 0L }?.let { ((total * 100) / it).toInt().coerceIn(0, 100) }
-
-            val shouldEmit = now - lastEmissionTime >= MIN_INTERVAL_MS || bytesDelta >= MIN_BYTES_STEP || percent == 100 || totalBytes == null
-            if (!shouldEmit) {
-                return
-            }
-            lastEmissionTime = now
+        /**
+         * Halves the target after a 429/503. Returns false when already at the minimum, in
+         * which case the caller should surface the failure instead of retrying.
+         */
+        @Synchronized
+        fun onThrottled(): Boolean {
+            val before = target
+            target = max(minParallelism, target / 2)
+            probing = false
+            holdWindows = PROBE_BACKOFF_WINDOWS
+            return before > minParallelism
+        }
 
-            val progress = DownloadProgress(
-                bytesDownloaded = total,
-                totalBytes = totalBytes,
-                chunkIndex = chunkIndex,
-                bytesPerSecond = smoothedSpeed.toLong().takeIf { it > 0 },
-                remainingBytes = remaining,
-                percent = percent
-            )
-            listeners.forEach { it.onProgress(handle, progress) }
+        /**
+         * Atomically removes one worker from [active] if more workers are running than the
+         * current target allows.
+         */
+        fun tryRetire(active: AtomicInteger): Boolean {
+            while (true) {
+                val current = active.get()
+                if (current <= target) return false
+                if (active.compareAndSet(current, current - 1)) return true
+            }
         }
 
         companion object {
-            private const val SMOOTHING_ALPHA = 0.65
-            private const val MIN_INTERVAL_MS = 150L
-            private const val MIN_BYTES_STEP = 16 * 1024L
+            const val SAMPLE_WINDOW_MS = 1_000L
+            private const val GROWTH_THRESHOLD = 0.05
+            private const val DECLINE_THRESHOLD = 0.3
+            private const val PROBE_BACKOFF_WINDOWS = 5
         }
     }
 
-    private fun extractTotalBytes(response: Response, range: ChunkPlan): Long? {
+    private class ThrottledResponseException(
+        val code: Int,
+        val retryAfterMillis: Long?,
+        message: String
+    ) : IOException(message)
+
+    private fun extractTotalBytes(response: Response, rangeStart: Long): Long? {
         response.header("Content-Range")?.let { header ->
             val slashIndex = header.lastIndexOf('/')
             if (slashIndex != -1 && slashIndex + 1 < header.length) {
                 header.substring(slashIndex + 1).toLongOrNull()?.let { return it }
             }
         }
-        if (range.start == 0L) {
+        if (rangeStart == 0L) {
             val length = response.body?.contentLength() ?: -1
             if (length > 0) return length
         }
         return null
     }
     
-    private fun extractContentType(request: DownloadRequest, callTracker: CallTracker?): String? {
-        // Use captured Content-Type if available
-        if (capturedContentType != null) {
-            return capturedContentType
-        }
-        
-        // Fallback: try HEAD request to get Content-Type
-        return try {
-            val headRequest = baseRequestBuilder(request).head().build()
-            val call = client.newCall(headRequest)
-            callTracker?.register(call)
-            call.execute().use { response ->
-                if (response.isSuccessful) {
-                    response.header("Content-Type")
-                } else {
-                    null
-                }
-            }
-        } catch (_: IOException) {
-            null
-        }
-    }
-
     private companion object {
-        private const val DEFAULT_BUFFER_SIZE = 16 * 1024
+        private const val MIN_STEAL_BYTES = 128 * 1024L
+        private const val THROTTLE_BACKOFF_MS = 1_000L
+        private const val MAX_PIECE_REPAIR_ROUNDS = 3
         private const val TAG = "ChunkedDownloader"
     }
 }
@@ -410,6 +1171,11 @@ internal class ChunkedDownloader(
  */
 internal data class DownloadResult(
     val totalBytes: Long?,
-    val contentType: String?
+    val contentType: String?,
+    /**
+     * Hex digest of the file under [DownloadRequest.checksumAlgorithm], computed while writing;
+     * null when the request has no expected checksum or checksums are not verified.
+     */
+    val checksum: String? = null
 )
 
@@ -0,0 +1,103 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.util.Locale
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * 1. Content-addressed index of downloads whose checksum was verified: digest → path, size and
+ *    modification time. A request carrying [DownloadRequest.expectedChecksum] that hits the
+ *    index is served from the local file instead of the network.
+ * 2. Entries are checked against the file on every lookup; a file that is gone or was touched
+ *    since it was recorded (size or mtime differ) drops out. Mirrored to a JSON file like
+ *    [HttpMetadataCache], with LRU eviction past [maxEntries]; 0 disables the index.
+ */
+internal class ContentIndex(
+    private val file: File?,
+    private val maxEntries: Int
+) {
+
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private var loaded = false
+
+    /**
+     * 3. The verified file with [checksum] under [algorithm], or null.
+     */
+    @Synchronized
+    fun lookup(algorithm: ChecksumAlgorithm, checksum: String): File? {
+        if (maxEntries <= 0) return null
+        ensureLoaded()
+        val key = keyOf(algorithm, checksum)
+        val entry = entries[key] ?: return null
+        val candidate = File(entry.path)
+        if (candidate.isFile && candidate.length() == entry.size && candidate.lastModified() == entry.modifiedAt) {
+            return candidate
+        }
+        entries.remove(key)
+        persist()
+        return null
+    }
+
+    /**
+     * 4. Records [file] as verified content for [checksum]; called once a download passed its
+     *    checksum check.
+     */
+    @Synchronized
+    fun record(algorithm: ChecksumAlgorithm, checksum: String, file: File) {
+        if (maxEntries <= 0 || !file.isFile) return
+        ensureLoaded()
+        entries[keyOf(algorithm, checksum)] = Entry(file.absolutePath, file.length(), file.lastModified())
+        trim()
+        persist()
+    }
+
+    private fun keyOf(algorithm: ChecksumAlgorithm, checksum: String): String =
+        "${algorithm.name}:${checksum.trim().toLowerCase(Locale.US)}"
+
+    private fun trim() {
+        val iterator = entries.entries.iterator()
+        while (entries.size > maxEntries && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) return
+        loaded = true
+        val source = file?.takeIf { it.exists() } ?: return
+        runCatching {
+            val array = JSONArray(source.readText())
+            for (i in 0 until array.length()) {
+                val obj = array.getJSONObject(i)
+                entries[obj.getString("key")] = Entry(
+                    path = obj.getString("path"),
+                    size = obj.getLong("size"),
+                    modifiedAt = obj.getLong("modifiedAt")
+                )
+            }
+            trim()
+        }
+    }
+
+    private fun persist() {
+        val target = file ?: return
+        runCatching {
+            target.parentFile?.mkdirs()
+            val array = JSONArray()
+            entries.forEach { (key, entry) ->
+                array.put(
+                    JSONObject()
+                        .put("key", key)
+                        .put("path", entry.path)
+                        .put("size", entry.size)
+                        .put("modifiedAt", entry.modifiedAt)
+                )
+            }
+            target.writeText(array.toString())
+        }
+    }
+
+    private class Entry(val path: String, val size: Long, val modifiedAt: Long)
+}
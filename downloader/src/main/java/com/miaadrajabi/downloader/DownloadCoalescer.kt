@@ -0,0 +1,210 @@
+package com.miaadrajabi.downloader
+
+import java.io.IOException
+import java.util.Locale
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+
+/**
+ * 1. Lets a request for a resource that is already being transferred ride along on that transfer
+ *    instead of opening a second one. Requests match on URL, headers (which carry any
+ *    conditional validators) and expected checksum.
+ * 2. The attached request ("follower") keeps its own handle: every event of the running transfer
+ *    is repeated for it, and on completion the file is linked or copied to the follower's
+ *    destination before its own [DownloadListener.onCompleted]. That runs in [scope], so a
+ *    large copy never holds up the transfer's own completion.
+ * 3. Sits in front of the [ListenerDispatcher], so mirrored events are delivered like any other.
+ * 4. The callers share one transfer but not their handles: pausing or resuming any of them
+ *    pauses or resumes the transfer for all, while stopping one only cancels that caller. When
+ *    the caller that started the transfer stops it, the transfer keeps running for the others
+ *    and only stops once the last of them has stopped too.
+ */
+internal class DownloadCoalescer(
+    private val downstream: DownloadListener,
+    private val scope: CoroutineScope,
+    private val onFollowerFinished: (handle: DownloadHandle) -> Unit
+) : DownloadListener {
+
+    private val transfers = HashMap<String, Transfer>()
+    private val byPrimary = HashMap<String, Transfer>()
+    private val byFollower = HashMap<String, Transfer>()
+
+    /**
+     * 5. Registers a transfer that later requests for the same resource may attach to.
+     */
+    @Synchronized
+    fun track(request: DownloadRequest, handle: DownloadHandle, resolution: StorageResolution) {
+        val transfer = Transfer(keyOf(request), handle, resolution)
+        transfers[transfer.key] = transfer
+        byPrimary[handle.id] = transfer
+    }
+
+    /**
+     * 6. The running transfer [request] could share, or null. A paused transfer is not joined,
+     *    since nothing would move until its owner resumes it.
+     */
+    @Synchronized
+    fun find(request: DownloadRequest): Transfer? =
+        transfers[keyOf(request)]?.takeIf { !it.paused }
+
+    /**
+     * 7. Attaches [handle] to [transfer] and replays what it missed so far.
+     */
+    fun attach(transfer: Transfer, handle: DownloadHandle, resolution: StorageResolution): Boolean {
+        val started = synchronized(this) {
+            if (byPrimary[transfer.primary.id] !== transfer) return false
+            transfer.followers[handle.id] = Follower(handle, resolution, transfer)
+            byFollower[handle.id] = transfer
+            transfer.started
+        }
+        downstream.onQueued(handle)
+        if (started) downstream.onStarted(handle)
+        return true
+    }
+
+    /**
+     * 8. Detaches a follower, e.g. when its caller stops it; the transfer itself keeps running
+     *    unless it is [abandoned].
+     */
+    @Synchronized
+    fun detach(handleId: String): Follower? {
+        val transfer = byFollower.remove(handleId) ?: return null
+        return transfer.followers.remove(handleId)
+    }
+
+    /**
+     * 9. Stops delivering the events of [handleId]'s own transfer to its caller while followers
+     *    still need it, and returns its handle. Null if [handleId] owns no transfer, nobody is
+     *    attached or it was detached before; unless [isDetachedPrimary], the transfer should
+     *    then be stopped.
+     */
+    @Synchronized
+    fun detachPrimary(handleId: String): DownloadHandle? {
+        val transfer = byPrimary[handleId]?.takeIf { !it.primaryDetached && it.followers.isNotEmpty() } ?: return null
+        transfer.primaryDetached = true
+        return transfer.primary
+    }
+
+    @Synchronized
+    fun isDetachedPrimary(handleId: String): Boolean = byPrimary[handleId]?.primaryDetached == true
+
+    /**
+     * 10. True once both the caller that started [transfer] and every follower have stopped.
+     */
+    @Synchronized
+    fun abandoned(transfer: Transfer): Boolean =
+        transfer.primaryDetached && transfer.followers.isEmpty() && byPrimary[transfer.primary.id] === transfer
+
+    /**
+     * 11. The transfer [handleId] is attached to as a follower, so pause and resume can act on it.
+     */
+    @Synchronized
+    fun primaryOf(handleId: String): DownloadHandle? = byFollower[handleId]?.primary
+
+    override fun onQueued(handle: DownloadHandle) = relay(handle) { downstream.onQueued(it) }
+
+    override fun onStarted(handle: DownloadHandle) {
+        synchronized(this) { byPrimary[handle.id]?.started = true }
+        relay(handle) { downstream.onStarted(it) }
+    }
+
+    override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) =
+        relay(handle) { downstream.onProgress(it, progress) }
+
+    override fun onPaused(handle: DownloadHandle) {
+        synchronized(this) { byPrimary[handle.id]?.paused = true }
+        relay(handle) { downstream.onPaused(it) }
+    }
+
+    override fun onResumed(handle: DownloadHandle) {
+        synchronized(this) { byPrimary[handle.id]?.paused = false }
+        relay(handle) { downstream.onResumed(it) }
+    }
+
+    override fun onRetry(handle: DownloadHandle, attempt: Int) = relay(handle) { downstream.onRetry(it, attempt) }
+
+    override fun onCompleted(handle: DownloadHandle) {
+        val transfer = finish(handle)
+        if (transfer?.primaryDetached != true) downstream.onCompleted(handle)
+        transfer?.followers?.values?.forEach { follower ->
+            scope.launch {
+                try {
+                    FileLinker.linkOrCopy(transfer.resolution.file, follower.resolution.file)
+                    downstream.onCompleted(follower.handle)
+                } catch (error: IOException) {
+                    downstream.onFailed(follower.handle, error)
+                }
+                onFollowerFinished(follower.handle)
+            }
+        }
+    }
+
+    override fun onFailed(handle: DownloadHandle, error: Throwable?) {
+        val transfer = finish(handle)
+        if (transfer?.primaryDetached != true) downstream.onFailed(handle, error)
+        transfer?.followers?.values?.forEach { follower ->
+            downstream.onFailed(follower.handle, error)
+            onFollowerFinished(follower.handle)
+        }
+    }
+
+    override fun onCancelled(handle: DownloadHandle) {
+        val transfer = finish(handle)
+        if (transfer?.primaryDetached != true) downstream.onCancelled(handle)
+        transfer?.followers?.values?.forEach { follower ->
+            downstream.onCancelled(follower.handle)
+            onFollowerFinished(follower.handle)
+        }
+    }
+
+    private fun relay(handle: DownloadHandle, event: (DownloadHandle) -> Unit) {
+        val (detached, followers) = synchronized(this) {
+            val transfer = byPrimary[handle.id]
+            (transfer?.primaryDetached == true) to transfer?.followers?.values?.map { it.handle }.orEmpty()
+        }
+        if (!detached) event(handle)
+        followers.forEach(event)
+    }
+
+    /**
+     * 12. Ends [handle]'s transfer if it owns one; no request can attach to it from here on.
+     */
+    @Synchronized
+    private fun finish(handle: DownloadHandle): Transfer? {
+        val transfer = byPrimary.remove(handle.id) ?: return null
+        if (transfers[transfer.key] === transfer) transfers.remove(transfer.key)
+        transfer.followers.keys.forEach { byFollower.remove(it) }
+        return transfer
+    }
+
+    private fun keyOf(request: DownloadRequest): String = buildString {
+        append(request.url)
+        append('\n').append(request.headers.toSortedMap())
+        request.expectedChecksum?.let { checksum ->
+            append('\n').append(request.checksumAlgorithm.name)
+            append(':').append(checksum.trim().toLowerCase(Locale.US))
+        }
+        request.additionalChecksums.toSortedMap().forEach { (algorithm, checksum) ->
+            append('\n').append(algorithm.name)
+            append(':').append(checksum.trim().toLowerCase(Locale.US))
+        }
+        request.signerCertificateSha256?.let { append("\nsigner:").append(it.toLowerCase(Locale.US)) }
+    }
+
+    class Transfer internal constructor(
+        val key: String,
+        val primary: DownloadHandle,
+        val resolution: StorageResolution
+    ) {
+        internal val followers = LinkedHashMap<String, Follower>()
+        internal var started = false
+        internal var paused = false
+        internal var primaryDetached = false
+    }
+
+    class Follower internal constructor(
+        val handle: DownloadHandle,
+        val resolution: StorageResolution,
+        val transfer: Transfer
+    )
+}
@@ -27,6 +27,7 @@ internal object DownloadConfigStore {
 
     private fun DownloadConfig.toJson(): JSONObject = JSONObject().apply {
         put("chunking", chunking.toJson())
+        put("queue", queue.toJson())
         put("retryPolicy", retryPolicy.toJson())
         put("enforceForegroundService", enforceForegroundService)
         put("notification", notification.toJson())
@@ -38,6 +39,24 @@ internal object DownloadConfigStore {
         put("chunkCount", chunkCount)
         put("minChunkSizeBytes", minChunkSizeBytes)
         put("preferParallel", preferParallel)
+        put("workStealing", workStealing)
+        put("adaptiveParallelism", adaptiveParallelism)
+        put("minParallelism", minParallelism)
+        put("maxParallelism", maxParallelism)
+        put("bufferSizeBytes", bufferSizeBytes)
+        put("bufferPoolLimitBytes", bufferPoolLimitBytes)
+        put("writeMode", writeMode.name)
+        put("mappedWindowBytes", mappedWindowBytes)
+        put("metadataCacheTtlMillis", metadataCacheTtlMillis)
+        put("metadataCacheMaxEntries", metadataCacheMaxEntries)
+    }
+
+    private fun QueueConfig.toJson(): JSONObject = JSONObject().apply {
+        put("maxActiveDownloads", maxActiveDownloads)
+        put("maxConnectionsPerHost", maxConnectionsPerHost)
+        put("preemption", preemption)
+        // Custom policies cannot be restored from JSON; they fall back to the default.
+        (policy as? StandardQueuePolicy)?.let { put("policy", it.name) }
     }
 
     private fun RetryPolicy.toJson(): JSONObject = JSONObject().apply {
@@ -53,6 +72,9 @@ internal object DownloadConfigStore {
         put("showProgressPercentage", showProgressPercentage)
         put("persistent", persistent)
         put("smallIconRes", smallIconRes ?: JSONObject.NULL)
+        put("maxUpdatesPerSecond", maxUpdatesPerSecond)
+        put("aggregateSummary", aggregateSummary)
+        put("showChildNotifications", showChildNotifications)
     }
 
     private fun SchedulerConfig.toJson(): JSONObject = JSONObject().apply {
@@ -60,6 +82,18 @@ internal object DownloadConfigStore {
         put("exactStartTime", exactStartTime?.toJson() ?: JSONObject.NULL)
         put("allowWhileIdle", allowWhileIdle)
         put("useAlarmManager", useAlarmManager)
+        put("maxBytesPerSecond", maxBytesPerSecond ?: JSONObject.NULL)
+        put("bandwidthProfiles", JSONArray().apply {
+            bandwidthProfiles.forEach { put(it.toJson()) }
+        })
+    }
+
+    private fun BandwidthProfile.toJson(): JSONObject = JSONObject().apply {
+        put("startHour", startHour)
+        put("startMinute", startMinute)
+        put("endHour", endHour)
+        put("endMinute", endMinute)
+        put("maxBytesPerSecond", maxBytesPerSecond ?: JSONObject.NULL)
     }
 
     private fun ScheduleTime.toJson(): JSONObject = JSONObject().apply {
@@ -80,6 +114,7 @@ internal object DownloadConfigStore {
         put("overwriteExisting", overwriteExisting)
         put("validateFreeSpace", validateFreeSpace)
         put("minFreeSpaceBytes", minFreeSpaceBytes)
+        put("contentIndexMaxEntries", contentIndexMaxEntries)
     }
 
     private fun DownloadDestination.toJson(): JSONObject {
@@ -103,7 +138,28 @@ internal object DownloadConfigStore {
     private fun JSONObject.toChunkingConfig() = ChunkingConfig(
         chunkCount = getInt("chunkCount"),
         minChunkSizeBytes = getLong("minChunkSizeBytes"),
-        preferParallel = getBoolean("preferParallel")
+        preferParallel = getBoolean("preferParallel"),
+        workStealing = optBoolean("workStealing", true),
+        adaptiveParallelism = optBoolean("adaptiveParallelism", false),
+        minParallelism = optInt("minParallelism", 1),
+        maxParallelism = optInt("maxParallelism", 6),
+        bufferSizeBytes = optInt("bufferSizeBytes", 16 * 1024),
+        bufferPoolLimitBytes = optLong("bufferPoolLimitBytes", 4 * 1024 * 1024L),
+        writeMode = optString("writeMode").takeIf { it.isNotEmpty() }
+            ?.let { ChunkWriteMode.valueOf(it) }
+            ?: ChunkWriteMode.SEGMENT_TRANSFER,
+        mappedWindowBytes = optLong("mappedWindowBytes", 8 * 1024 * 1024L),
+        metadataCacheTtlMillis = optLong("metadataCacheTtlMillis", 10 * 60 * 1000L),
+        metadataCacheMaxEntries = optInt("metadataCacheMaxEntries", 64)
+    )
+
+    private fun JSONObject.toQueueConfig() = QueueConfig(
+        maxActiveDownloads = optInt("maxActiveDownloads", 4),
+        maxConnectionsPerHost = optInt("maxConnectionsPerHost", 6),
+        policy = optString("policy").takeIf { it.isNotEmpty() }
+            ?.let { name -> StandardQueuePolicy.values().firstOrNull { it.name == name } }
+            ?: StandardQueuePolicy.FIFO,
+        preemption = optBoolean("preemption", false)
     )
 
     private fun JSONObject.toRetryPolicy() = RetryPolicy(
@@ -118,14 +174,29 @@ internal object DownloadConfigStore {
         channelDescription = getString("channelDescription"),
         showProgressPercentage = getBoolean("showProgressPercentage"),
         persistent = getBoolean("persistent"),
-        smallIconRes = optIntNullable("smallIconRes")
+        smallIconRes = optIntNullable("smallIconRes"),
+        maxUpdatesPerSecond = optInt("maxUpdatesPerSecond", 2),
+        aggregateSummary = optBoolean("aggregateSummary", false),
+        showChildNotifications = optBoolean("showChildNotifications", true)
     )
 
     private fun JSONObject.toSchedulerConfig() = SchedulerConfig(
         periodicIntervalMinutes = optLongNullable("periodicIntervalMinutes"),
         exactStartTime = optJSONObject("exactStartTime")?.toScheduleTime(),
         allowWhileIdle = getBoolean("allowWhileIdle"),
-        useAlarmManager = getBoolean("useAlarmManager")
+        useAlarmManager = getBoolean("useAlarmManager"),
+        maxBytesPerSecond = optLongNullable("maxBytesPerSecond"),
+        bandwidthProfiles = optJSONArray("bandwidthProfiles")?.let { array ->
+            (0 until array.length()).map { array.getJSONObject(it).toBandwidthProfile() }
+        } ?: emptyList()
+    )
+
+    private fun JSONObject.toBandwidthProfile() = BandwidthProfile(
+        startHour = getInt("startHour"),
+        startMinute = getInt("startMinute"),
+        endHour = getInt("endHour"),
+        endMinute = getInt("endMinute"),
+        maxBytesPerSecond = optLongNullable("maxBytesPerSecond")
     )
 
     private fun JSONObject.toScheduleTime() = ScheduleTime(
@@ -153,7 +224,8 @@ internal object DownloadConfigStore {
             downloadDirs = dirs,
             overwriteExisting = getBoolean("overwriteExisting"),
             validateFreeSpace = getBoolean("validateFreeSpace"),
-            minFreeSpaceBytes = getLong("minFreeSpaceBytes")
+            minFreeSpaceBytes = getLong("minFreeSpaceBytes"),
+            contentIndexMaxEntries = optInt("contentIndexMaxEntries", 512)
         )
     }
 
@@ -165,7 +237,8 @@ internal object DownloadConfigStore {
             notification = json.getJSONObject("notification").toNotificationConfig(),
             scheduler = json.getJSONObject("scheduler").toSchedulerConfig(),
             storage = json.getJSONObject("storage").toStorageConfig(),
-            listeners = emptyList()
+            listeners = emptyList(),
+            queue = json.optJSONObject("queue")?.toQueueConfig() ?: QueueConfig()
         )
     }
 
@@ -174,6 +247,35 @@ internal object DownloadConfigStore {
         return File(dir, "mobile_downloader_config.json")
     }
 
+    // === Scheduled Piece Manifests ===
+
+    /**
+     * Keeps the piece hashes of a scheduled request out of WorkManager `Data`, which is capped
+     * at 10 KB. Returns false if the manifest could not be written.
+     */
+    fun saveScheduledManifest(context: Context, requestId: String, manifest: PieceManifest): Boolean {
+        return runCatching {
+            val file = scheduledManifestFile(context, requestId)
+            file.parentFile?.mkdirs()
+            file.writeText(PieceVerifier.toJson(manifest).toString())
+        }.isSuccess
+    }
+
+    fun loadScheduledManifest(context: Context, requestId: String): PieceManifest? {
+        val file = scheduledManifestFile(context, requestId)
+        if (!file.exists()) return null
+        return runCatching { PieceVerifier.fromJson(JSONObject(file.readText())) }.getOrNull()
+    }
+
+    fun removeScheduledManifest(context: Context, requestId: String) {
+        scheduledManifestFile(context, requestId).delete()
+    }
+
+    private fun scheduledManifestFile(context: Context, requestId: String): File {
+        val dir = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS) ?: context.filesDir
+        return File(File(dir, "scheduled_manifests"), "$requestId.json")
+    }
+
     // === Pause State Persistence ===
 
     fun savePausedState(
@@ -182,7 +284,8 @@ internal object DownloadConfigStore {
         request: DownloadRequest,
         resolution: StorageResolution,
         completedBytes: Long,
-        chunkStates: List<ChunkStateData> = emptyList()
+        chunkStates: List<ChunkStateData> = emptyList(),
+        validator: String? = null
     ) {
         runCatching {
             val file = pausedStateFile(context, handleId)
@@ -192,6 +295,7 @@ internal object DownloadConfigStore {
                 put("request", request.toJson())
                 put("resolution", resolution.toJson())
                 put("completedBytes", completedBytes)
+                put("validator", validator ?: JSONObject.NULL)
                 put("chunkStates", JSONArray().apply {
                     chunkStates.forEach { state ->
                         put(state.toJson())
@@ -212,7 +316,8 @@ internal object DownloadConfigStore {
                 request = json.getJSONObject("request").toDownloadRequest(),
                 resolution = json.getJSONObject("resolution").toStorageResolution(),
                 completedBytes = json.getLong("completedBytes"),
-                chunkStates = json.optJSONArray("chunkStates")?.toChunkStateList() ?: emptyList()
+                chunkStates = json.optJSONArray("chunkStates")?.toChunkStateList() ?: emptyList(),
+                validator = json.optStringNullable("validator")
             )
         }.getOrNull()
     }
@@ -228,7 +333,8 @@ internal object DownloadConfigStore {
                     request = json.getJSONObject("request").toDownloadRequest(),
                     resolution = json.getJSONObject("resolution").toStorageResolution(),
                     completedBytes = json.getLong("completedBytes"),
-                    chunkStates = json.optJSONArray("chunkStates")?.toChunkStateList() ?: emptyList()
+                    chunkStates = json.optJSONArray("chunkStates")?.toChunkStateList() ?: emptyList(),
+                    validator = json.optStringNullable("validator")
                 )
             }.getOrNull()
         } ?: emptyList()
@@ -253,6 +359,11 @@ internal object DownloadConfigStore {
         put("fileName", fileName)
         put("destination", destination.toJson())
         put("headers", JSONObject(headers))
+        put("priority", priority)
+        put("maxBytesPerSecond", maxBytesPerSecond ?: JSONObject.NULL)
+        put("pieceManifest", pieceManifest?.let { PieceVerifier.toJson(it) } ?: JSONObject.NULL)
+        put("signerCertificateSha256", signerCertificateSha256 ?: JSONObject.NULL)
+        put("additionalChecksums", additionalChecksums.toChecksumJson())
     }
 
     private fun JSONObject.toDownloadRequest(): DownloadRequest {
@@ -272,7 +383,12 @@ internal object DownloadConfigStore {
             url = getString("url"),
             fileName = getString("fileName"),
             destination = destination,
-            headers = headers
+            headers = headers,
+            priority = optInt("priority", 0),
+            maxBytesPerSecond = optLongNullable("maxBytesPerSecond"),
+            pieceManifest = optJSONObject("pieceManifest")?.let { PieceVerifier.fromJson(it) },
+            additionalChecksums = optJSONObject("additionalChecksums")?.toChecksumMap() ?: emptyMap(),
+            signerCertificateSha256 = optStringNullable("signerCertificateSha256")
         )
     }
 
@@ -296,7 +412,12 @@ data class PausedStateData(
     val request: DownloadRequest,
     val resolution: StorageResolution,
     val completedBytes: Long,
-    val chunkStates: List<ChunkStateData> = emptyList()
+    val chunkStates: List<ChunkStateData> = emptyList(),
+    /**
+     * ETag or Last-Modified of the remote file the saved bytes came from, sent as `If-Range`
+     * on resume.
+     */
+    val validator: String? = null
 )
 
 data class ChunkStateData(
@@ -333,3 +454,18 @@ private fun JSONObject.optIntNullable(key: String): Int? =
 private fun JSONObject.optLongNullable(key: String): Long? =
     if (isNull(key)) null else getLong(key)
 
+private fun JSONObject.optStringNullable(key: String): String? =
+    if (isNull(key)) null else getString(key)
+
+/**
+ * Digests keyed by algorithm name, e.g. `{"MD5": "9e10…", "SHA512": "cf83…"}`. Names this
+ * version does not know are skipped.
+ */
+internal fun Map<ChecksumAlgorithm, String>.toChecksumJson(): JSONObject = JSONObject().apply {
+    forEach { (algorithm, checksum) -> put(algorithm.name, checksum) }
+}
+
+internal fun JSONObject.toChecksumMap(): Map<ChecksumAlgorithm, String> =
+    ChecksumAlgorithm.values().mapNotNull { algorithm ->
+        optStringNullable(algorithm.name)?.let { algorithm to it }
+    }.toMap()
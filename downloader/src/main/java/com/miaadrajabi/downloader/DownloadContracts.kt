@@ -5,7 +5,7 @@ import java.util.UUID
 /**
  * 1. Aggregates every configurable aspect of the download manager.
  */
-data class DownloadConfig(
+data class DownloadConfig @JvmOverloads constructor(
     val chunking: ChunkingConfig = ChunkingConfig(),
     val retryPolicy: RetryPolicy = RetryPolicy(),
     val enforceForegroundService: Boolean = true,
@@ -14,18 +14,160 @@ data class DownloadConfig(
     val storage: StorageConfig = StorageConfig(),
     val installer: InstallerConfig = InstallerConfig(),
     val integrity: IntegrityConfig = IntegrityConfig(),
-    val listeners: List<DownloadListener> = emptyList()
+    val listeners: List<DownloadListener> = emptyList(),
+    val mainThreadListeners: List<DownloadListener> = emptyList(),
+    val queue: QueueConfig = QueueConfig()
 )
 
+/**
+ * Thread a [DownloadListener] is called on. Callbacks never run on the download threads.
+ */
+enum class ListenerDelivery {
+    /**
+     * The manager's listener thread (default).
+     */
+    BACKGROUND,
+
+    /**
+     * The Android main thread.
+     */
+    MAIN_THREAD
+}
+
 /**
  * 2. Controls how files split across parallel requests.
  */
-data class ChunkingConfig(
+data class ChunkingConfig @JvmOverloads constructor(
     val chunkCount: Int = 3,
     val minChunkSizeBytes: Long = 512 * 1024L,
-    val preferParallel: Boolean = true
+    val preferParallel: Boolean = true,
+    /**
+     * If true, an idle worker splits the in-flight chunk with the longest estimated
+     * time left and fetches its upper half with a new Range request.
+     */
+    val workStealing: Boolean = true,
+    /**
+     * If true, the number of concurrent connections is tuned at runtime between
+     * [minParallelism] and [maxParallelism] instead of using [chunkCount]: it grows while
+     * aggregate throughput keeps rising and halves on 429/503 responses or falling throughput.
+     */
+    val adaptiveParallelism: Boolean = false,
+    val minParallelism: Int = 1,
+    val maxParallelism: Int = 6,
+    /**
+     * Size of the I/O buffer each chunk borrows from the manager's shared pool
+     * (rounded up to a power of two between 16 KB and 1 MB).
+     */
+    val bufferSizeBytes: Int = 16 * 1024,
+    /**
+     * Upper bound on the memory the shared buffer pool keeps for reuse.
+     */
+    val bufferPoolLimitBytes: Long = 4 * 1024 * 1024L,
+    val writeMode: ChunkWriteMode = ChunkWriteMode.SEGMENT_TRANSFER,
+    /**
+     * Size of the window each chunk maps at a time in [ChunkWriteMode.MEMORY_MAPPED] mode.
+     */
+    val mappedWindowBytes: Long = 8 * 1024 * 1024L,
+    /**
+     * How long remembered response metadata (size, validators, range support, redirect
+     * target) lets a download plan its chunks without waiting for an opening response.
+     * 0 disables the cache.
+     */
+    val metadataCacheTtlMillis: Long = 10 * 60 * 1000L,
+    val metadataCacheMaxEntries: Int = 64
 )
 
+/**
+ * Limits how many downloads transfer at once and decides which waiting download starts next.
+ */
+data class QueueConfig(
+    val maxActiveDownloads: Int = 4,
+    /**
+     * Connections all running downloads of one host may use together. Each download reserves
+     * as many as its chunking settings can open (capped at this budget) and is limited to them.
+     */
+    val maxConnectionsPerHost: Int = 6,
+    val policy: DownloadQueuePolicy = StandardQueuePolicy.FIFO,
+    /**
+     * If true, a waiting download that cannot start pauses a running one with a lower
+     * [DownloadRequest.priority]. The preempted download keeps its chunk progress, fires no
+     * onPaused, and is resumed from the queue when capacity frees up.
+     */
+    val preemption: Boolean = false
+)
+
+/**
+ * A waiting download as seen by a [DownloadQueuePolicy].
+ */
+data class QueuedDownload(
+    val request: DownloadRequest,
+    /**
+     * Increases with every enqueue or resume, so it orders entries by arrival.
+     */
+    val sequence: Long,
+    /**
+     * Bytes still to transfer if the size is known (from earlier progress or cached metadata).
+     */
+    val remainingBytes: Long?
+)
+
+/**
+ * Orders waiting downloads; the one comparing lowest starts first.
+ */
+interface DownloadQueuePolicy {
+    fun compare(a: QueuedDownload, b: QueuedDownload): Int
+}
+
+enum class StandardQueuePolicy : DownloadQueuePolicy {
+    /**
+     * Arrival order.
+     */
+    FIFO {
+        override fun compare(a: QueuedDownload, b: QueuedDownload) = a.sequence.compareTo(b.sequence)
+    },
+
+    /**
+     * Highest [DownloadRequest.priority] first, then arrival order.
+     */
+    PRIORITY {
+        override fun compare(a: QueuedDownload, b: QueuedDownload): Int {
+            val byPriority = b.request.priority.compareTo(a.request.priority)
+            return if (byPriority != 0) byPriority else a.sequence.compareTo(b.sequence)
+        }
+    },
+
+    /**
+     * Fewest remaining bytes first (unknown sizes last), then priority and arrival order.
+     */
+    SHORTEST_REMAINING_FIRST {
+        override fun compare(a: QueuedDownload, b: QueuedDownload): Int {
+            val byRemaining = (a.remainingBytes ?: Long.MAX_VALUE).compareTo(b.remainingBytes ?: Long.MAX_VALUE)
+            return if (byRemaining != 0) byRemaining else PRIORITY.compare(a, b)
+        }
+    }
+}
+
+/**
+ * How chunk response bodies are moved into the target file.
+ */
+enum class ChunkWriteMode {
+    /**
+     * Drains OkHttp's Okio segments straight into the positional FileChannel (default).
+     */
+    SEGMENT_TRANSFER,
+
+    /**
+     * Copies through `byteStream()` into a pooled buffer before writing it to the file.
+     */
+    STREAM_COPY,
+
+    /**
+     * Writes each chunk through a sliding MappedByteBuffer window instead of one write call per
+     * segment. Needs a known content length; otherwise SEGMENT_TRANSFER is used.
+     */
+    MEMORY_MAPPED
+}
+
 /**
  * 3. Retry policy definition for failed download attempts.
  */
@@ -38,23 +180,56 @@ data class RetryPolicy(
 /**
  * 4. Notification channel and foreground UI preferences.
  */
-data class NotificationConfig(
+data class NotificationConfig @JvmOverloads constructor(
     val channelId: String = "mobile_downloader",
     val channelName: String = "Mobile Downloader",
     val channelDescription: String = "Background downloads",
     val showProgressPercentage: Boolean = true,
     val persistent: Boolean = true,
-    val smallIconRes: Int? = null
+    val smallIconRes: Int? = null,
+    /**
+     * Upper bound on notification posts per second; progress in between is coalesced.
+     */
+    val maxUpdatesPerSecond: Int = 2,
+    /**
+     * If true, the foreground notification summarizes every download (total bytes, total speed,
+     * active/queued counts) instead of showing whichever download updated last.
+     */
+    val aggregateSummary: Boolean = false,
+    /**
+     * In aggregate mode, also show one grouped notification per download.
+     */
+    val showChildNotifications: Boolean = true
 )
 
 /**
  * 5. Scheduler knobs for periodic or exact triggers.
  */
-data class SchedulerConfig(
+data class SchedulerConfig @JvmOverloads constructor(
     val periodicIntervalMinutes: Long? = null,
     val exactStartTime: ScheduleTime? = null,
     val allowWhileIdle: Boolean = true,
-    val useAlarmManager: Boolean = false
+    val useAlarmManager: Boolean = false,
+    /**
+     * Manager-wide bandwidth cap in bytes per second shared by all downloads; null is unlimited.
+     */
+    val maxBytesPerSecond: Long? = null,
+    /**
+     * Time-of-day caps replacing [maxBytesPerSecond] while active; the first match wins.
+     */
+    val bandwidthProfiles: List<BandwidthProfile> = emptyList()
+)
+
+/**
+ * 5.1 Manager-wide bandwidth cap for a daily window; the end is exclusive and may lie past
+ *     midnight (22:00-06:00). A null [maxBytesPerSecond] lifts the cap inside the window.
+ */
+data class BandwidthProfile(
+    val startHour: Int,
+    val startMinute: Int = 0,
+    val endHour: Int,
+    val endMinute: Int = 0,
+    val maxBytesPerSecond: Long?
 )
 
 /**
@@ -85,12 +260,17 @@ enum class Weekday(val calendarValue: Int) {
 /**
  * 7. Storage directives and housekeeping rules.
  */
-data class StorageConfig(
+data class StorageConfig @JvmOverloads constructor(
     val downloadDirs: List<DownloadDestination> = listOf(DownloadDestination.Auto),
     val overwriteExisting: Boolean = true,
     val validateFreeSpace: Boolean = true,
     val minFreeSpaceBytes: Long = 10 * 1024 * 1024L,
-    val preferExternalPublic: Boolean = false
+    val preferExternalPublic: Boolean = false,
+    /**
+     * Size of the index of checksum-verified downloads used to serve requests with a known
+     * [DownloadRequest.expectedChecksum] from disk; 0 turns local reuse off.
+     */
+    val contentIndexMaxEntries: Int = 512
 )
 
 data class InstallerConfig(
@@ -147,9 +327,11 @@ data class IntegrityConfig(
     val verifyContentType: Boolean = false,
     
     /**
-     * If true, attempts to verify APK signature (requires PackageManager).
-     * This is expensive and may fail for unsigned APKs.
-     * Recommended: false (optional, only if signature verification is critical)
+     * If true, verifies the APK Signature Scheme v2/v3 signature in-library: signers are
+     * checked and the signed digests compared with the file, 1 MB chunks hashed in parallel.
+     * APKs with only a JAR (v1) signature fall back to PackageManager; `.apks` bundles are
+     * skipped. Setting [DownloadRequest.signerCertificateSha256] opts a single request in.
+     * Recommended: false (opt in when unsigned or re-signed APKs must be rejected)
      */
     val verifyApkSignature: Boolean = false
 )
@@ -180,7 +362,7 @@ enum class ChecksumAlgorithm {
 /**
  * 8. Request model describing what and where to download.
  */
-data class DownloadRequest(
+data class DownloadRequest @JvmOverloads constructor(
     val url: String,
     val fileName: String,
     val destination: DownloadDestination = DownloadDestination.Auto,
@@ -199,7 +381,48 @@ data class DownloadRequest(
      * Algorithm used to calculate the expectedChecksum.
      * Default: SHA256 (recommended)
      */
-    val checksumAlgorithm: ChecksumAlgorithm = ChecksumAlgorithm.SHA256
+    val checksumAlgorithm: ChecksumAlgorithm = ChecksumAlgorithm.SHA256,
+
+    /**
+     * Scheduling priority; higher values start earlier under [StandardQueuePolicy.PRIORITY].
+     */
+    val priority: Int = 0,
+
+    /**
+     * Bandwidth cap of this download in bytes per second, on top of the manager-wide one.
+     */
+    val maxBytesPerSecond: Long? = null,
+
+    /**
+     * Per-piece hashes; when set, a corrupted region is re-downloaded on its own instead of
+     * the whole file.
+     */
+    val pieceManifest: PieceManifest? = null,
+
+    /**
+     * Further digests the file must match, e.g. an MD5 and a SHA-512 published next to the
+     * SHA-256. Verified in the same read of the file as [expectedChecksum].
+     */
+    val additionalChecksums: Map<ChecksumAlgorithm, String> = emptyMap(),
+
+    /**
+     * SHA-256 of the expected signer certificate (hex, colons allowed), as printed by
+     * `apksigner verify --print-certs`. When set, the APK signature is always verified and
+     * must come from this certificate.
+     */
+    val signerCertificateSha256: String? = null
+)
+
+/**
+ * 8.1 Hashes of fixed-size pieces of the file, given inline ([pieceHashes]) or fetched from
+ *     [manifestUrl] as JSON: `{"pieceSize": 4194304, "algorithm": "SHA256", "pieces": ["..."]}`.
+ *     The last piece may be shorter than [pieceSize].
+ */
+data class PieceManifest(
+    val pieceSize: Long,
+    val pieceHashes: List<String> = emptyList(),
+    val algorithm: ChecksumAlgorithm = ChecksumAlgorithm.SHA256,
+    val manifestUrl: String? = null
 )
 
 /**
@@ -228,7 +451,15 @@ data class DownloadProgress(
     val chunkIndex: Int? = null,
     val bytesPerSecond: Long? = null,
     val remainingBytes: Long? = null,
-    val percent: Int? = null
+    val percent: Int? = null,
+    /**
+     * Number of connections the download is currently allowed to use.
+     */
+    val parallelism: Int? = null,
+    /**
+     * Estimated time to completion at the smoothed speed, when the size is known.
+     */
+    val etaMillis: Long? = null
 )
 
 /**
@@ -18,6 +18,7 @@ class DownloadForegroundService : Service() {
 
     private lateinit var manager: MobileDownloadManager
     private val uiListeners get() = Companion.uiListeners
+    private val mainThreadUiListeners get() = Companion.mainThreadUiListeners
     private val notificationManager by lazy {
         getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
     }
@@ -26,9 +27,15 @@ class DownloadForegroundService : Service() {
     override fun onCreate() {
         super.onCreate()
         manager = createManagerFromConfig()
+        runningInstance = this
         Log.d(TAG, "Download manager initialized from stored configuration")
     }
 
+    override fun onDestroy() {
+        if (runningInstance === this) runningInstance = null
+        super.onDestroy()
+    }
+
     /**
      * Creates the MobileDownloadManager by loading configuration from DownloadConfigStore.
      * If no configuration exists, throws an exception to prevent the service from running
@@ -46,6 +53,21 @@ class DownloadForegroundService : Service() {
             chunkCount(savedConfig.chunking.chunkCount)
             chunkParallel(savedConfig.chunking.preferParallel)
             chunkMinSize(savedConfig.chunking.minChunkSizeBytes)
+            chunkWorkStealing(savedConfig.chunking.workStealing)
+            chunkAdaptiveParallelism(
+                enable = savedConfig.chunking.adaptiveParallelism,
+                minParallelism = savedConfig.chunking.minParallelism,
+                maxParallelism = savedConfig.chunking.maxParallelism
+            )
+            chunkBufferSize(savedConfig.chunking.bufferSizeBytes, savedConfig.chunking.bufferPoolLimitBytes)
+            chunkWriteMode(savedConfig.chunking.writeMode, savedConfig.chunking.mappedWindowBytes)
+            chunkMetadataCache(savedConfig.chunking.metadataCacheTtlMillis, savedConfig.chunking.metadataCacheMaxEntries)
+            queueLimits(
+                maxActiveDownloads = savedConfig.queue.maxActiveDownloads,
+                maxConnectionsPerHost = savedConfig.queue.maxConnectionsPerHost,
+                policy = savedConfig.queue.policy
+            )
+            queuePreemption(savedConfig.queue.preemption)
 
             // Apply retry policy
             retryPolicy(
@@ -62,6 +84,8 @@ class DownloadForegroundService : Service() {
             )
             notificationShowProgress(savedConfig.notification.showProgressPercentage)
             notificationPersistent(savedConfig.notification.persistent)
+            notificationMaxUpdatesPerSecond(savedConfig.notification.maxUpdatesPerSecond)
+            notificationAggregate(savedConfig.notification.aggregateSummary, savedConfig.notification.showChildNotifications)
             savedConfig.notification.smallIconRes?.let { notificationIcon(it) }
                 ?: notificationIcon(notificationIconRes ?: android.R.drawable.stat_sys_download)
 
@@ -69,30 +93,29 @@ class DownloadForegroundService : Service() {
             savedConfig.scheduler.periodicIntervalMinutes?.let { 
                 periodicSchedule(intervalMinutes = it) 
             }
+            bandwidthLimit(savedConfig.scheduler.maxBytesPerSecond)
+            savedConfig.scheduler.bandwidthProfiles.forEach { profile ->
+                bandwidthProfile(
+                    startHour = profile.startHour,
+                    startMinute = profile.startMinute,
+                    endHour = profile.endHour,
+                    endMinute = profile.endMinute,
+                    bytesPerSecond = profile.maxBytesPerSecond
+                )
+            }
 
             // Apply storage configuration
             storageDestinations(savedConfig.storage.downloadDirs)
             storageOverwrite(savedConfig.storage.overwriteExisting)
             storageValidateFreeSpace(savedConfig.storage.validateFreeSpace)
+            storageReuseVerifiedFiles(savedConfig.storage.contentIndexMaxEntries)
 
             // Apply installer configuration
             installerPromptOnCompletion(savedConfig.installer.promptOnCompletion)
 
-            // Add relay listener for UI communication
-            addListener(object : DownloadListener {
-                override fun onQueued(handle: DownloadHandle) = relay { it.onQueued(handle) }
-                override fun onStarted(handle: DownloadHandle) = relay { it.onStarted(handle) }
-                override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) =
-                    relay { it.onProgress(handle, progress) }
-                override fun onPaused(handle: DownloadHandle) = relay { it.onPaused(handle) }
-                override fun onResumed(handle: DownloadHandle) = relay { it.onResumed(handle) }
-                override fun onCompleted(handle: DownloadHandle) = relay { it.onCompleted(handle) }
-                override fun onFailed(handle: DownloadHandle, error: Throwable?) =
-                    relay { it.onFailed(handle, error) }
-                override fun onCancelled(handle: DownloadHandle) = relay { it.onCancelled(handle) }
-                override fun onRetry(handle: DownloadHandle, attempt: Int) =
-                    relay { it.onRetry(handle, attempt) }
-            })
+            // Add relay listeners for UI communication, one per delivery thread
+            addListener(relayListener(uiListeners))
+            addListener(relayListener(mainThreadUiListeners), ListenerDelivery.MAIN_THREAD)
         }
     }
 
@@ -147,8 +170,23 @@ class DownloadForegroundService : Service() {
 
     override fun onBind(intent: Intent?): IBinder? = null
 
-    private fun relay(block: (DownloadListener) -> Unit) {
-        uiListeners.forEach { listener ->
+    private fun relayListener(targets: List<DownloadListener>) = object : DownloadListener {
+        override fun onQueued(handle: DownloadHandle) = relay(targets) { it.onQueued(handle) }
+        override fun onStarted(handle: DownloadHandle) = relay(targets) { it.onStarted(handle) }
+        override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) =
+            relay(targets) { it.onProgress(handle, progress) }
+        override fun onPaused(handle: DownloadHandle) = relay(targets) { it.onPaused(handle) }
+        override fun onResumed(handle: DownloadHandle) = relay(targets) { it.onResumed(handle) }
+        override fun onCompleted(handle: DownloadHandle) = relay(targets) { it.onCompleted(handle) }
+        override fun onFailed(handle: DownloadHandle, error: Throwable?) =
+            relay(targets) { it.onFailed(handle, error) }
+        override fun onCancelled(handle: DownloadHandle) = relay(targets) { it.onCancelled(handle) }
+        override fun onRetry(handle: DownloadHandle, attempt: Int) =
+            relay(targets) { it.onRetry(handle, attempt) }
+    }
+
+    private fun relay(targets: List<DownloadListener>, block: (DownloadListener) -> Unit) {
+        targets.forEach { listener ->
             try {
                 block(listener)
             } catch (_: Throwable) {
@@ -157,7 +195,10 @@ class DownloadForegroundService : Service() {
         }
     }
 
-    private fun updateForeground(notification: Notification) {
+    /**
+     * Shows [notification] as the foreground notification. Must be called on the main thread.
+     */
+    internal fun updateForeground(notification: Notification) {
         if (!foregroundStarted) {
             startForeground(DownloadNotificationHelper.FOREGROUND_NOTIFICATION_ID, notification)
             foregroundStarted = true
@@ -178,7 +219,16 @@ class DownloadForegroundService : Service() {
         const val ACTION_SCHEDULE = "com.miaadrajabi.downloader.action.SCHEDULE"
 
         private var notificationIconRes: Int? = null
+
+        /**
+         * Service currently running in this process, so notification frames can be posted
+         * without an Intent round trip.
+         */
+        @Volatile
+        internal var runningInstance: DownloadForegroundService? = null
+            private set
         private val uiListeners = CopyOnWriteArrayList<DownloadListener>()
+        private val mainThreadUiListeners = CopyOnWriteArrayList<DownloadListener>()
 
         /**
          * Configures the download service with the specified settings.
@@ -209,13 +259,18 @@ class DownloadForegroundService : Service() {
         }
 
         @JvmStatic
-        fun registerListener(listener: DownloadListener) {
-            uiListeners += listener
+        @JvmOverloads
+        fun registerListener(listener: DownloadListener, delivery: ListenerDelivery = ListenerDelivery.BACKGROUND) {
+            when (delivery) {
+                ListenerDelivery.BACKGROUND -> uiListeners += listener
+                ListenerDelivery.MAIN_THREAD -> mainThreadUiListeners += listener
+            }
         }
 
         @JvmStatic
         fun unregisterListener(listener: DownloadListener) {
             uiListeners -= listener
+            mainThreadUiListeners -= listener
         }
 
         @JvmStatic
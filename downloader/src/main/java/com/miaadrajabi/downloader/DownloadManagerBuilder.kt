@@ -11,6 +11,7 @@ class DownloadManagerBuilder internal constructor(
 ) {
 
     private var chunking: ChunkingConfig = ChunkingConfig()
+    private var queue: QueueConfig = QueueConfig()
     private var retryPolicy: RetryPolicy = RetryPolicy()
     private var enforceForegroundService: Boolean = true
     private var notification: NotificationConfig = NotificationConfig()
@@ -19,6 +20,7 @@ class DownloadManagerBuilder internal constructor(
     private var installer: InstallerConfig = InstallerConfig()
     private var integrity: IntegrityConfig = IntegrityConfig()
     private val listeners = mutableListOf<DownloadListener>()
+    private val mainThreadListeners = mutableListOf<DownloadListener>()
 
     /**
      * 2. Sets the number of parallel chunks.
@@ -41,6 +43,86 @@ class DownloadManagerBuilder internal constructor(
         chunking = chunking.copy(minChunkSizeBytes = max(64 * 1024L, bytes))
     }
 
+    /**
+     * 4.1 Enables or disables splitting slow in-flight chunks for idle workers.
+     */
+    fun chunkWorkStealing(enable: Boolean) = apply {
+        chunking = chunking.copy(workStealing = enable)
+    }
+
+    /**
+     * 4.2 Lets the downloader tune its connection count between the given bounds.
+     */
+    fun chunkAdaptiveParallelism(
+        enable: Boolean = true,
+        minParallelism: Int = chunking.minParallelism,
+        maxParallelism: Int = chunking.maxParallelism
+    ) = apply {
+        val lower = max(1, minParallelism)
+        chunking = chunking.copy(
+            adaptiveParallelism = enable,
+            minParallelism = lower,
+            maxParallelism = max(lower, maxParallelism)
+        )
+    }
+
+    /**
+     * 4.3 Sets the per-chunk read buffer size and the memory kept by the shared buffer pool.
+     */
+    fun chunkBufferSize(bytes: Int, poolLimitBytes: Long = chunking.bufferPoolLimitBytes) = apply {
+        chunking = chunking.copy(
+            bufferSizeBytes = bytes.coerceIn(ByteBufferPool.MIN_CLASS_SIZE, ByteBufferPool.MAX_CLASS_SIZE),
+            bufferPoolLimitBytes = max(0L, poolLimitBytes)
+        )
+    }
+
+    /**
+     * 4.4 Chooses how response bytes are written into the target file.
+     */
+    fun chunkWriteMode(mode: ChunkWriteMode, mappedWindowBytes: Long = chunking.mappedWindowBytes) = apply {
+        chunking = chunking.copy(
+            writeMode = mode,
+            mappedWindowBytes = max(64 * 1024L, mappedWindowBytes)
+        )
+    }
+
+    /**
+     * 4.5 Configures the persistent HTTP metadata cache used to plan chunks without a probe.
+     */
+    fun chunkMetadataCache(
+        ttlMillis: Long,
+        maxEntries: Int = chunking.metadataCacheMaxEntries
+    ) = apply {
+        chunking = chunking.copy(
+            metadataCacheTtlMillis = max(0L, ttlMillis),
+            metadataCacheMaxEntries = max(1, maxEntries)
+        )
+    }
+
+    /**
+     * 4.6 Limits concurrent downloads overall and connections per host, and picks the order in
+     *     which waiting downloads start.
+     */
+    fun queueLimits(
+        maxActiveDownloads: Int = queue.maxActiveDownloads,
+        maxConnectionsPerHost: Int = queue.maxConnectionsPerHost,
+        policy: DownloadQueuePolicy = queue.policy
+    ) = apply {
+        queue = queue.copy(
+            maxActiveDownloads = max(1, maxActiveDownloads),
+            maxConnectionsPerHost = max(1, maxConnectionsPerHost),
+            policy = policy
+        )
+    }
+
+    /**
+     * 4.7 Lets higher-priority downloads transparently pause lower-priority ones when the
+     *     queue is full; preempted downloads resume on their own.
+     */
+    fun queuePreemption(enable: Boolean) = apply {
+        queue = queue.copy(preemption = enable)
+    }
+
     /**
      * 5. Adjusts retry policy parameters.
      */
@@ -95,6 +177,21 @@ class DownloadManagerBuilder internal constructor(
         notification = notification.copy(persistent = persistent)
     }
 
+    /**
+     * 10.1 Caps how often the download notification is re-posted.
+     */
+    fun notificationMaxUpdatesPerSecond(updates: Int) = apply {
+        notification = notification.copy(maxUpdatesPerSecond = updates.coerceIn(1, 10))
+    }
+
+    /**
+     * 10.2 Shows one summary notification for all downloads, optionally with grouped
+     *      per-download notifications under it.
+     */
+    fun notificationAggregate(enable: Boolean = true, showChildren: Boolean = notification.showChildNotifications) = apply {
+        notification = notification.copy(aggregateSummary = enable, showChildNotifications = showChildren)
+    }
+
     /**
      * 11. Configures periodic scheduling via WorkManager.
      */
@@ -152,6 +249,36 @@ class DownloadManagerBuilder internal constructor(
         scheduler = scheduler.copy(useAlarmManager = useAlarmManager)
     }
 
+    /**
+     * 14.1 Caps the combined bandwidth of all downloads; null removes the cap.
+     */
+    fun bandwidthLimit(bytesPerSecond: Long?) = apply {
+        scheduler = scheduler.copy(maxBytesPerSecond = bytesPerSecond)
+    }
+
+    /**
+     * 14.2 Adds a daily window with its own combined bandwidth cap, e.g. a lower one during
+     *      working hours. Earlier profiles win where windows overlap.
+     */
+    @JvmOverloads
+    fun bandwidthProfile(
+        startHour: Int,
+        startMinute: Int = 0,
+        endHour: Int,
+        endMinute: Int = 0,
+        bytesPerSecond: Long?
+    ) = apply {
+        scheduler = scheduler.copy(
+            bandwidthProfiles = scheduler.bandwidthProfiles + BandwidthProfile(
+                startHour = startHour,
+                startMinute = startMinute,
+                endHour = endHour,
+                endMinute = endMinute,
+                maxBytesPerSecond = bytesPerSecond
+            )
+        )
+    }
+
     /**
      * 14. Overrides default storage destinations.
      */
@@ -182,6 +309,14 @@ class DownloadManagerBuilder internal constructor(
         storage = storage.copy(preferExternalPublic = enable)
     }
 
+    /**
+     * 16.1 Sizes the index of checksum-verified downloads. A request whose expected checksum
+     *      matches one of them is linked or copied locally instead of downloaded; 0 disables it.
+     */
+    fun storageReuseVerifiedFiles(maxEntries: Int) = apply {
+        storage = storage.copy(contentIndexMaxEntries = maxEntries)
+    }
+
     fun installerPromptOnCompletion(
         enabled: Boolean = true,
         fallbackMimeType: String = installer.fallbackMimeType
@@ -200,7 +335,7 @@ class DownloadManagerBuilder internal constructor(
      * @param verifyChecksum If true, verifies file checksum if provided in DownloadRequest (recommended: true for APKs)
      * @param verifyApkStructure If true, validates APK structure for .apk/.apks files (recommended: true)
      * @param verifyContentType If true, validates Content-Type header (recommended: false)
-     * @param verifyApkSignature If true, verifies APK signature (expensive, recommended: false)
+     * @param verifyApkSignature If true, verifies the APK v2/v3 signature in-library (recommended: false)
      */
     fun integrityValidation(
         verifyFileSize: Boolean? = null,
@@ -233,10 +368,15 @@ class DownloadManagerBuilder internal constructor(
     }
 
     /**
-     * 19. Adds a listener that receives download lifecycle callbacks.
+     * 19. Adds a listener that receives download lifecycle callbacks on the thread chosen by
+     *     [delivery].
      */
-    fun addListener(listener: DownloadListener) = apply {
-        listeners += listener
+    @JvmOverloads
+    fun addListener(listener: DownloadListener, delivery: ListenerDelivery = ListenerDelivery.BACKGROUND) = apply {
+        when (delivery) {
+            ListenerDelivery.BACKGROUND -> listeners += listener
+            ListenerDelivery.MAIN_THREAD -> mainThreadListeners += listener
+        }
     }
 
     /**
@@ -244,6 +384,7 @@ class DownloadManagerBuilder internal constructor(
      */
     fun clearListeners() = apply {
         listeners.clear()
+        mainThreadListeners.clear()
     }
 
     /**
@@ -258,7 +399,9 @@ class DownloadManagerBuilder internal constructor(
         storage = storage,
         installer = installer,
         integrity = integrity,
-        listeners = listeners.toList()
+        listeners = listeners.toList(),
+        mainThreadListeners = mainThreadListeners.toList(),
+        queue = queue
     )
 
     /**
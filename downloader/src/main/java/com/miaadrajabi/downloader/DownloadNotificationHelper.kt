@@ -26,8 +26,36 @@ internal class DownloadNotificationHelper(
         ensureChannel()
     }
 
+    private val surface = object : NotificationSurface {
+        override fun newBuilder() = baseBuilder()
+
+        override fun compose(builder: NotificationCompat.Builder, handle: DownloadHandle?, content: NotificationContent) =
+            this@DownloadNotificationHelper.compose(builder, handle, content)
+
+        override fun summarize(contents: List<NotificationContent>) = buildSummary(contents)
+
+        override fun publishForeground(notification: Notification, finished: Boolean) =
+            this@DownloadNotificationHelper.publishForeground(notification, finished)
+
+        override fun publishChild(id: Int, notification: Notification) {
+            notificationManager.notify(id, notification)
+        }
+
+        override fun cancelChild(id: Int) {
+            notificationManager.cancel(id)
+        }
+    }
+    private val renderer = NotificationRenderer(
+        maxUpdatesPerSecond = config.maxUpdatesPerSecond,
+        surface = surface,
+        aggregate = config.aggregateSummary,
+        showChildren = config.showChildNotifications
+    )
+    private val actionIntents = HashMap<String, PendingIntent>()
+
     /**
-     * 2. Listener hooked into the download pipeline to mirror state changes.
+     * 2. Listener hooked into the download pipeline to mirror state changes. It only records
+     *    state; [NotificationRenderer] decides when the notification is actually posted.
      */
     val listener: DownloadListener = object : DownloadListener {
         override fun onQueued(handle: DownloadHandle) {
@@ -36,7 +64,8 @@ internal class DownloadNotificationHelper(
                 title = "Queued download",
                 text = handle.source,
                 indeterminate = true,
-                withActions = true
+                withActions = true,
+                phase = NotificationPhase.QUEUED
             )
         }
 
@@ -61,7 +90,8 @@ internal class DownloadNotificationHelper(
                 text = handle.source,
                 indeterminate = false,
                 withActions = true,
-                isPaused = true
+                isPaused = true,
+                phase = NotificationPhase.PAUSED
             )
         }
 
@@ -82,7 +112,8 @@ internal class DownloadNotificationHelper(
                 title = "Download complete",
                 text = handle.source,
                 indeterminate = false,
-                ongoing = false
+                ongoing = false,
+                phase = NotificationPhase.FINISHED
             )
         }
 
@@ -92,12 +123,13 @@ internal class DownloadNotificationHelper(
                 title = "Download failed",
                 text = error?.localizedMessage ?: "Unknown error",
                 indeterminate = false,
-                ongoing = false
+                ongoing = false,
+                phase = NotificationPhase.FINISHED
             )
         }
 
         override fun onCancelled(handle: DownloadHandle) {
-            cancel()
+            if (config.aggregateSummary) renderer.remove(handle.id) else cancel()
         }
     }
 
@@ -121,36 +153,111 @@ internal class DownloadNotificationHelper(
         indeterminate: Boolean,
         ongoing: Boolean = config.persistent,
         withActions: Boolean = false,
-        isPaused: Boolean = false
+        isPaused: Boolean = false,
+        phase: NotificationPhase = NotificationPhase.ACTIVE
     ) {
-        val builder = baseBuilder(ongoing)
-            .setContentTitle(title)
-            .setContentText(text)
-            .setProgress(0, 0, indeterminate)
-        if (withActions && ongoing) {
-            addControlActions(builder, handle, isPaused)
+        val actions = when {
+            !withActions || !ongoing -> NotificationActions.NONE
+            isPaused -> NotificationActions.RESUME_STOP
+            else -> NotificationActions.PAUSE_STOP
         }
-        startForegroundWith(builder.build())
+        renderer.update(
+            handle,
+            NotificationContent(
+                title = title,
+                text = text,
+                indeterminate = indeterminate,
+                ongoing = ongoing,
+                actions = actions,
+                phase = phase
+            )
+        )
     }
 
     private fun showProgress(handle: DownloadHandle, progress: DownloadProgress) {
         val total = progress.totalBytes
-        val detailText = buildProgressText(progress)
-        val builder = baseBuilder()
-            .setContentTitle("Downloading")
-            .setContentText(detailText)
-            .setStyle(NotificationCompat.BigTextStyle().bigText(buildSecondaryText(progress)))
-
-        if (total != null && total > 0) {
-            val max = total.toIntSafe()
-            val current = progress.bytesDownloaded.toIntSafe()
-            builder.setProgress(max, current, false)
-        } else {
-            builder.setProgress(0, 0, true)
+        val percent = progress.percent ?: total?.takeIf { it > 0 }?.let {
+            ((progress.bytesDownloaded * 100) / it).toInt().coerceIn(0, 100)
         }
+        renderer.update(
+            handle,
+            NotificationContent(
+                title = "Downloading",
+                text = buildProgressText(progress),
+                detail = buildSecondaryText(progress),
+                percent = percent,
+                indeterminate = percent == null,
+                ongoing = config.persistent,
+                actions = NotificationActions.PAUSE_STOP,
+                bytesDownloaded = progress.bytesDownloaded,
+                totalBytes = total,
+                bytesPerSecond = progress.bytesPerSecond
+            )
+        )
+    }
 
-        addControlActions(builder, handle, isPaused = false)
-        startForegroundWith(builder.build())
+    /**
+     * 3. Aggregate-mode summary: combined bytes and speed of every download still in flight,
+     *    plus how many are active, queued and paused.
+     */
+    private fun buildSummary(contents: List<NotificationContent>): NotificationContent {
+        val pending = contents.filter { it.phase != NotificationPhase.FINISHED }
+        val active = pending.count { it.phase == NotificationPhase.ACTIVE }
+        val queued = pending.count { it.phase == NotificationPhase.QUEUED }
+        val paused = pending.count { it.phase == NotificationPhase.PAUSED }
+        val bytes = pending.sumOf { it.bytesDownloaded }
+        val total = if (pending.any { it.totalBytes == null }) null else pending.sumOf { it.totalBytes ?: 0L }
+        val speed = pending.filter { it.phase == NotificationPhase.ACTIVE }.sumOf { it.bytesPerSecond ?: 0L }
+        val percent = total?.takeIf { it > 0 }?.let { ((bytes * 100) / it).toInt().coerceIn(0, 100) }
+
+        val text = StringBuilder(bytes.toHumanReadable())
+        total?.let { text.append(" / ").append(it.toHumanReadable()) }
+        if (speed > 0) text.append(" • ").append(speed.toHumanReadable()).append("/s")
+        val counts = StringBuilder().append(active).append(" active, ").append(queued).append(" queued")
+        if (paused > 0) counts.append(", ").append(paused).append(" paused")
+        return NotificationContent(
+            title = if (pending.isEmpty()) "Downloads finished" else "Downloads: $counts",
+            text = text.toString(),
+            percent = percent,
+            indeterminate = percent == null && active > 0,
+            ongoing = config.persistent && pending.isNotEmpty(),
+            phase = if (pending.isEmpty()) NotificationPhase.FINISHED else NotificationPhase.ACTIVE,
+            bytesDownloaded = bytes,
+            totalBytes = total,
+            bytesPerSecond = speed
+        )
+    }
+
+    /**
+     * 4. Writes [content] into a reused builder, replacing everything a previous frame set.
+     */
+    private fun compose(builder: NotificationCompat.Builder, handle: DownloadHandle?, content: NotificationContent) {
+        builder.setOngoing(content.ongoing)
+            .setContentTitle(content.title)
+            .setContentText(content.text)
+            .setStyle(content.detail?.let { NotificationCompat.BigTextStyle().bigText(it) })
+            .setProgress(if (content.percent != null) 100 else 0, content.percent ?: 0, content.indeterminate)
+            .clearActions()
+        if (handle == null) return
+        when (content.actions) {
+            NotificationActions.PAUSE_STOP -> addControlActions(builder, handle, isPaused = false)
+            NotificationActions.RESUME_STOP -> addControlActions(builder, handle, isPaused = true)
+            NotificationActions.NONE -> Unit
+        }
+    }
+
+    /**
+     * 5. Posts straight to the running service; only the first frame (or one after the service
+     *    stopped) goes through an Intent so the service can call `startForeground`. A [finished]
+     *    frame never starts the service: with nothing left to run, nothing would stop it again.
+     */
+    private fun publishForeground(notification: Notification, finished: Boolean) {
+        val service = DownloadForegroundService.runningInstance
+        when {
+            service != null -> service.updateForeground(notification)
+            finished -> notificationManager.notify(FOREGROUND_NOTIFICATION_ID, notification)
+            else -> startForegroundWith(notification)
+        }
     }
 
     fun buildForegroundNotification(title: String, text: String): Notification {
@@ -166,6 +273,7 @@ internal class DownloadNotificationHelper(
     }
 
     fun cancel() {
+        renderer.clear()
         notificationManager.cancel(FOREGROUND_NOTIFICATION_ID)
     }
 
@@ -217,6 +325,10 @@ internal class DownloadNotificationHelper(
     }
 
     private fun actionPendingIntent(action: String, handle: DownloadHandle): PendingIntent {
+        return actionIntents.getOrPut(action + handle.id) { createActionPendingIntent(action, handle) }
+    }
+
+    private fun createActionPendingIntent(action: String, handle: DownloadHandle): PendingIntent {
         val flags = if (Build.VERSION.SDK_INT >= ANDROID_12) {
             PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
         } else {
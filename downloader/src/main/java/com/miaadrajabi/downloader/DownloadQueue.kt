@@ -0,0 +1,167 @@
+package com.miaadrajabi.downloader
+
+import java.util.PriorityQueue
+
+/**
+ * 1. Waiting and running downloads of one manager. [poll] hands out the best-ranked waiting
+ *    entry (per [policy]) that fits both the global [maxActive] limit and its host's connection
+ *    budget, and reserves that capacity until [release].
+ * 2. Entries wait in one priority heap per host, so picking the next one only compares the head
+ *    of each host that still has budget: O(hosts + log n) with thousands of entries queued.
+ */
+internal class DownloadQueue<T>(
+    private val maxActive: Int,
+    private val maxConnectionsPerHost: Int,
+    private val policy: DownloadQueuePolicy
+) {
+
+    class Ticket<T> internal constructor(
+        val id: String,
+        val host: String,
+        /**
+         * Connections reserved on [host] while the download runs.
+         */
+        val connections: Int,
+        val info: QueuedDownload,
+        val payload: T
+    ) {
+        internal var removed = false
+        internal var preempting = false
+    }
+
+    private val order = Comparator<Ticket<T>> { a, b -> policy.compare(a.info, b.info) }
+    private val lanes = HashMap<String, HostLane<T>>()
+    private val waiting = HashMap<String, Ticket<T>>()
+    private val running = LinkedHashSet<Ticket<T>>()
+    private var active = 0
+    private var sequence = 0L
+
+    val waitingCount: Int
+        @Synchronized get() = waiting.size
+
+    val activeCount: Int
+        @Synchronized get() = active
+
+    /**
+     * 3. Adds a waiting entry. [connections] is what the download could open; it is capped at
+     *    the host budget so a single download always fits an idle host.
+     */
+    @Synchronized
+    fun offer(
+        id: String,
+        request: DownloadRequest,
+        host: String,
+        connections: Int,
+        remainingBytes: Long?,
+        payload: T
+    ): Ticket<T> {
+        remove(id)
+        val ticket = Ticket(
+            id = id,
+            host = host,
+            connections = connections.coerceIn(1, maxConnectionsPerHost.coerceAtLeast(1)),
+            info = QueuedDownload(request, sequence++, remainingBytes),
+            payload = payload
+        )
+        waiting[id] = ticket
+        lanes.getOrPut(host) { HostLane(PriorityQueue(11, order)) }.waiting += ticket
+        return ticket
+    }
+
+    /**
+     * 4. Removes and reserves the next entry allowed to start, or returns null if none fits.
+     */
+    @Synchronized
+    fun poll(): Ticket<T>? {
+        if (active >= maxActive.coerceAtLeast(1)) return null
+        var best: Ticket<T>? = null
+        var bestLane: HostLane<T>? = null
+        for (lane in lanes.values) {
+            val head = lane.peekLive() ?: continue
+            if (lane.inUse > 0 && lane.inUse + head.connections > maxConnectionsPerHost) continue
+            if (best == null || order.compare(head, best) < 0) {
+                best = head
+                bestLane = lane
+            }
+        }
+        if (best == null || bestLane == null) return null
+        bestLane.waiting.poll()
+        bestLane.inUse += best.connections
+        waiting.remove(best.id)
+        running += best
+        active++
+        return best
+    }
+
+    /**
+     * 5. Picks a running download to preempt for the best waiting one, which [poll] could not
+     *    start. Only strictly lower [DownloadRequest.priority] qualifies; when the waiting entry
+     *    is held back by its host budget the victim must free connections on that host. At most
+     *    one preemption is in flight at a time, so capacity is not over-freed.
+     */
+    @Synchronized
+    fun preemptionVictim(): Ticket<T>? {
+        if (running.any { it.preempting }) return null
+        var urgent: Ticket<T>? = null
+        for (lane in lanes.values) {
+            val head = lane.peekLive() ?: continue
+            if (urgent == null || order.compare(head, urgent) < 0) urgent = head
+        }
+        if (urgent == null) return null
+        val lane = lanes.getValue(urgent.host)
+        val hostBlocked = lane.inUse > 0 && lane.inUse + urgent.connections > maxConnectionsPerHost
+        val urgentPriority = urgent.info.request.priority
+        val victim = running
+            .filter { it.info.request.priority < urgentPriority && (!hostBlocked || it.host == urgent.host) }
+            .minWithOrNull(compareBy<Ticket<T>> { it.info.request.priority }.thenByDescending { it.info.sequence })
+            ?: return null
+        victim.preempting = true
+        return victim
+    }
+
+    /**
+     * 6. Returns the capacity reserved by a ticket handed out by [poll].
+     */
+    @Synchronized
+    fun release(ticket: Ticket<T>) {
+        if (!running.remove(ticket)) return
+        val lane = lanes[ticket.host] ?: return
+        lane.inUse = (lane.inUse - ticket.connections).coerceAtLeast(0)
+        active = (active - 1).coerceAtLeast(0)
+        dropIfIdle(ticket.host, lane)
+    }
+
+    /**
+     * 7. Takes a waiting entry out of the queue, returning its payload.
+     */
+    @Synchronized
+    fun remove(id: String): T? {
+        val ticket = waiting.remove(id) ?: return null
+        // Removed lazily from the heap: skipped when it reaches the head.
+        ticket.removed = true
+        lanes[ticket.host]?.let { lane ->
+            lane.peekLive()
+            dropIfIdle(ticket.host, lane)
+        }
+        return ticket.payload
+    }
+
+    @Synchronized
+    fun isWaiting(id: String): Boolean = waiting.containsKey(id)
+
+    private fun dropIfIdle(host: String, lane: HostLane<T>) {
+        if (lane.inUse == 0 && lane.peekLive() == null) lanes.remove(host)
+    }
+
+    private class HostLane<T>(val waiting: PriorityQueue<Ticket<T>>) {
+        var inUse = 0
+
+        fun peekLive(): Ticket<T>? {
+            while (true) {
+                val head = waiting.peek() ?: return null
+                if (!head.removed) return head
+                waiting.poll()
+            }
+        }
+    }
+}
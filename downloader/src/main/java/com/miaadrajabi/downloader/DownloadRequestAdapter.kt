@@ -1,5 +1,6 @@
 package com.miaadrajabi.downloader
 
+import android.content.Context
 import android.content.Intent
 import androidx.work.Data
 import org.json.JSONObject
@@ -9,29 +10,59 @@ import org.json.JSONObject
  */
 internal object DownloadRequestAdapter {
 
-    fun toData(request: DownloadRequest): Data {
-        return Data.Builder()
+    /**
+     * 2. WorkManager caps [Data] at 10 KB. Hashes that can be fetched again are left out, and
+     *    inline hashes are stored in [DownloadConfigStore] with only a marker put in the data.
+     */
+    fun toData(context: Context, request: DownloadRequest): Data {
+        val builder = Data.Builder()
             .putString(KEY_URL, request.url)
             .putString(KEY_FILE_NAME, request.fileName)
             .putString(KEY_DESTINATION, destinationToJson(request.destination).toString())
             .putString(KEY_HEADERS, JSONObject(request.headers).toString())
             .putString(KEY_ID, request.id)
-            .build()
+            .putInt(KEY_PRIORITY, request.priority)
+        request.maxBytesPerSecond?.let { builder.putLong(KEY_MAX_BYTES_PER_SECOND, it) }
+        request.pieceManifest?.let { manifest ->
+            if (manifest.manifestUrl != null) {
+                builder.putString(KEY_PIECE_MANIFEST, PieceVerifier.toJson(manifest, includeHashes = false).toString())
+            } else {
+                check(DownloadConfigStore.saveScheduledManifest(context, request.id, manifest)) {
+                    "Unable to store the piece manifest of scheduled request ${request.id}"
+                }
+                builder.putBoolean(KEY_PIECE_MANIFEST_STORED, true)
+            }
+        }
+        if (request.additionalChecksums.isNotEmpty()) {
+            builder.putString(KEY_ADDITIONAL_CHECKSUMS, request.additionalChecksums.toChecksumJson().toString())
+        }
+        request.signerCertificateSha256?.let { builder.putString(KEY_SIGNER_CERTIFICATE, it) }
+        return builder.build()
     }
 
-    fun fromData(data: Data): DownloadRequest? {
+    fun fromData(context: Context, data: Data): DownloadRequest? {
         val url = data.getString(KEY_URL) ?: return null
         val fileName = data.getString(KEY_FILE_NAME) ?: return null
         val destination = data.getString(KEY_DESTINATION)?.let { destinationFromJson(JSONObject(it)) }
             ?: DownloadDestination.Auto
         val headers = data.getString(KEY_HEADERS)?.let { jsonToMap(JSONObject(it)) } ?: emptyMap()
         val id = data.getString(KEY_ID) ?: java.util.UUID.randomUUID().toString()
+        val pieceManifest = if (data.getBoolean(KEY_PIECE_MANIFEST_STORED, false)) {
+            DownloadConfigStore.loadScheduledManifest(context, id)
+        } else {
+            data.getString(KEY_PIECE_MANIFEST)?.let { PieceVerifier.fromJson(JSONObject(it)) }
+        }
         return DownloadRequest(
             url = url,
             fileName = fileName,
             destination = destination,
             id = id,
-            headers = headers
+            headers = headers,
+            priority = data.getInt(KEY_PRIORITY, 0),
+            maxBytesPerSecond = data.getLong(KEY_MAX_BYTES_PER_SECOND, 0L).takeIf { it > 0 },
+            pieceManifest = pieceManifest,
+            additionalChecksums = data.getString(KEY_ADDITIONAL_CHECKSUMS)?.let { JSONObject(it).toChecksumMap() } ?: emptyMap(),
+            signerCertificateSha256 = data.getString(KEY_SIGNER_CERTIFICATE)
         )
     }
 
@@ -41,6 +72,13 @@ internal object DownloadRequestAdapter {
         intent.putExtra(KEY_DESTINATION, destinationToJson(request.destination).toString())
         intent.putExtra(KEY_HEADERS, JSONObject(request.headers).toString())
         intent.putExtra(KEY_ID, request.id)
+        intent.putExtra(KEY_PRIORITY, request.priority)
+        request.maxBytesPerSecond?.let { intent.putExtra(KEY_MAX_BYTES_PER_SECOND, it) }
+        request.pieceManifest?.let { intent.putExtra(KEY_PIECE_MANIFEST, PieceVerifier.toJson(it).toString()) }
+        if (request.additionalChecksums.isNotEmpty()) {
+            intent.putExtra(KEY_ADDITIONAL_CHECKSUMS, request.additionalChecksums.toChecksumJson().toString())
+        }
+        request.signerCertificateSha256?.let { intent.putExtra(KEY_SIGNER_CERTIFICATE, it) }
     }
 
     fun fromIntent(intent: Intent): DownloadRequest? {
@@ -55,7 +93,13 @@ internal object DownloadRequestAdapter {
             fileName = fileName,
             destination = destination,
             id = id,
-            headers = headers
+            headers = headers,
+            priority = intent.getIntExtra(KEY_PRIORITY, 0),
+            maxBytesPerSecond = intent.getLongExtra(KEY_MAX_BYTES_PER_SECOND, 0L).takeIf { it > 0 },
+            pieceManifest = intent.getStringExtra(KEY_PIECE_MANIFEST)?.let { PieceVerifier.fromJson(JSONObject(it)) },
+            additionalChecksums = intent.getStringExtra(KEY_ADDITIONAL_CHECKSUMS)
+                ?.let { JSONObject(it).toChecksumMap() } ?: emptyMap(),
+            signerCertificateSha256 = intent.getStringExtra(KEY_SIGNER_CERTIFICATE)
         )
     }
 
@@ -98,5 +142,11 @@ internal object DownloadRequestAdapter {
     private const val KEY_DESTINATION = "download_destination"
     private const val KEY_HEADERS = "download_headers"
     private const val KEY_ID = "download_id"
+    private const val KEY_PRIORITY = "download_priority"
+    private const val KEY_MAX_BYTES_PER_SECOND = "download_max_bytes_per_second"
+    private const val KEY_PIECE_MANIFEST = "download_piece_manifest"
+    private const val KEY_PIECE_MANIFEST_STORED = "download_piece_manifest_stored"
+    private const val KEY_ADDITIONAL_CHECKSUMS = "download_additional_checksums"
+    private const val KEY_SIGNER_CERTIFICATE = "download_signer_certificate_sha256"
 }
 
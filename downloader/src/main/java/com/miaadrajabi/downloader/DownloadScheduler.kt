@@ -50,11 +50,12 @@ internal class DownloadScheduler(
         }
         workManager.cancelUniqueWork(uniqueWorkName(requestId))
         workManager.cancelUniqueWork(oneTimeWorkName(requestId))
+        DownloadConfigStore.removeScheduledManifest(context, requestId)
     }
 
     private fun schedulePeriodic(request: DownloadRequest) {
         val interval = schedulerConfig.periodicIntervalMinutes ?: return
-        val data = DownloadRequestAdapter.toData(request)
+        val data = DownloadRequestAdapter.toData(context, request)
         val workRequest = PeriodicWorkRequestBuilder<ScheduledDownloadWorker>(
             interval, TimeUnit.MINUTES
         ).setInputData(data).build()
@@ -69,7 +70,7 @@ internal class DownloadScheduler(
         val triggerAt = computeTriggerMillis(scheduleTime)
         val delay = triggerAt - System.currentTimeMillis()
         val builder = OneTimeWorkRequestBuilder<ScheduledDownloadWorker>()
-            .setInputData(DownloadRequestAdapter.toData(request))
+            .setInputData(DownloadRequestAdapter.toData(context, request))
         if (delay > 0) {
             builder.setInitialDelay(delay, TimeUnit.MILLISECONDS)
         }
@@ -0,0 +1,58 @@
+package com.miaadrajabi.downloader
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.min
+import okio.Buffer
+import okio.Sink
+import okio.Timeout
+
+/**
+ * Sink that writes to a fixed file region and tracks the offset of its next byte.
+ */
+internal interface PositionalSink : Sink {
+    val position: Long
+}
+
+/**
+ * 1. Okio [Sink] that writes incoming segments at an advancing position of a shared [FileChannel].
+ * 2. Segment arrays are read through [Buffer.UnsafeCursor] and written in place, so no bytes are
+ *    copied into an intermediate array. Closing the sink leaves the channel open for other chunks.
+ */
+internal class FileChannelSink(
+    private val channel: FileChannel,
+    position: Long
+) : PositionalSink {
+
+    private val cursor = Buffer.UnsafeCursor()
+
+    /**
+     * 3. Offset at which the next byte will be written.
+     */
+    override var position: Long = position
+        private set
+
+    override fun write(source: Buffer, byteCount: Long) {
+        require(byteCount in 0..source.size) { "byteCount=$byteCount size=${source.size}" }
+        var remaining = byteCount
+        while (remaining > 0L) {
+            val length = source.readUnsafe(cursor).use {
+                cursor.seek(0L)
+                val segmentLength = min(remaining, (cursor.end - cursor.start).toLong()).toInt()
+                val view = ByteBuffer.wrap(cursor.data!!, cursor.start, segmentLength)
+                while (view.hasRemaining()) {
+                    position += channel.write(view, position)
+                }
+                segmentLength
+            }
+            source.skip(length.toLong())
+            remaining -= length
+        }
+    }
+
+    override fun flush() = Unit
+
+    override fun timeout(): Timeout = Timeout.NONE
+
+    override fun close() = Unit
+}
@@ -2,10 +2,13 @@ package com.miaadrajabi.downloader
 
 import android.content.Context
 import android.content.pm.PackageManager
+import android.os.Build
 import android.util.Log
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.GeneralSecurityException
 import java.security.MessageDigest
 import java.util.Locale
 import java.util.zip.ZipFile
@@ -30,6 +33,7 @@ internal object FileIntegrityVerifier {
     private const val TAG = "FileIntegrityVerifier"
     private const val APK_MAGIC_NUMBER = "PK" // ZIP files start with "PK" (0x504B)
     private const val APK_MIME_TYPE = "application/vnd.android.package-archive"
+    private val HEX_DIGITS = "0123456789abcdef".toCharArray()
     
     /**
      * Validates file size against expected size.
@@ -77,24 +81,39 @@ internal object FileIntegrityVerifier {
                     digest.update(buffer, 0, read)
                 }
             }
-            val hashBytes = digest.digest()
-            hashBytes.joinToString("") { "%02x".format(it) }
+            toHex(digest.digest())
         } catch (e: Exception) {
             Log.e(TAG, "Error calculating checksum: ${algorithm.name}", e)
             null
         }
     }
     
+    /**
+     * Lowercase hex representation of a digest, built in one char array instead of a
+     * formatted String per byte.
+     */
+    fun toHex(bytes: ByteArray): String {
+        val chars = CharArray(bytes.size * 2)
+        for (i in bytes.indices) {
+            val value = bytes[i].toInt()
+            chars[i * 2] = HEX_DIGITS[(value shr 4) and 0x0f]
+            chars[i * 2 + 1] = HEX_DIGITS[value and 0x0f]
+        }
+        return String(chars)
+    }
+    
     /**
      * Verifies file checksum against expected value.
+     * A [precomputedChecksum] (hashed while downloading) is used as is instead of reading the file.
      * @return true if checksums match, false otherwise
      */
     fun verifyChecksum(
         file: File,
         expectedChecksum: String,
-        algorithm: ChecksumAlgorithm
+        algorithm: ChecksumAlgorithm,
+        precomputedChecksum: String? = null
     ): Boolean {
-        val actualChecksum = calculateChecksum(file, algorithm)
+        val actualChecksum = precomputedChecksum ?: calculateChecksum(file, algorithm)
         
         if (actualChecksum == null) {
             Log.e(TAG, "Failed to calculate checksum for verification")
@@ -183,7 +202,41 @@ internal object FileIntegrityVerifier {
             return false
         }
         
-        // Validate ZIP structure
+        return verifyCentralDirectory(file)
+    }
+    
+    /**
+     * Validates the ZIP central directory from the End-of-Central-Directory record at the
+     * tail of the file, without opening a ZipFile; the magic number is checked by the caller.
+     * ZIP64 archives fall back to the ZipFile walk.
+     */
+    private fun verifyCentralDirectory(file: File): Boolean {
+        try {
+            RandomAccessFile(file, "r").use { raf ->
+                val channel = raf.channel
+                val directory = ZipCentralDirectory.locate(channel, channel.size())
+                    ?: return verifyZipEntries(file)
+                val hasManifest = directory.contains(channel, ApkTailCheck.APK_MANIFEST)
+                if (!hasManifest) {
+                    Log.w(TAG, "APK does not contain AndroidManifest.xml (may be invalid)")
+                    // Don't fail here, some APKs might have manifest in different location
+                }
+                Log.d(TAG, "APK structure verified: ${directory.entries} entries, manifest=$hasManifest")
+                return true
+            }
+        } catch (e: ZipException) {
+            Log.e(TAG, "APK ZIP structure invalid", e)
+            return false
+        } catch (e: IOException) {
+            Log.e(TAG, "Error validating APK ZIP structure", e)
+            return false
+        }
+    }
+    
+    /**
+     * Walks the ZIP entries through ZipFile; used for archives the EOCD check cannot read.
+     */
+    private fun verifyZipEntries(file: File): Boolean {
         try {
             ZipFile(file).use { zip ->
                 // Try to read entries to verify ZIP integrity
@@ -222,21 +275,65 @@ internal object FileIntegrityVerifier {
     }
     
     /**
-     * Verifies APK signature using PackageManager.
-     * This is expensive and may fail for unsigned APKs.
-     * @return true if signature is valid or verification is skipped, false on error
+     * Verifies the APK Signature Scheme v2/v3 signature with [ApkSignatureVerifier]. APKs with
+     * only a JAR (v1) signature fall back to PackageManager, which needs [context]; without it
+     * they are not checked. `.apks` bundles carry no APK signature of their own and are skipped.
+     * A [pinnedCertificateSha256] must match one of the signer certificates; it needs a v2/v3
+     * signature.
+     * @return true if signature is valid or was not checked, false otherwise
      */
-    fun verifyApkSignature(context: Context, file: File): Boolean {
+    suspend fun verifyApkSignature(context: Context?, file: File, pinnedCertificateSha256: String? = null): Boolean {
         if (!isApkFile(file)) {
             Log.d(TAG, "File is not an APK, skipping signature validation")
             return true
         }
         
+        if (file.name.toLowerCase(Locale.US).endsWith(".apks")) {
+            Log.d(TAG, "APK bundle has no signature of its own, skipping signature validation")
+            return true
+        }
+        
         if (!file.exists()) {
             Log.e(TAG, "APK file does not exist: ${file.absolutePath}")
             return false
         }
         
+        val result = try {
+            ApkSignatureVerifier().verify(file, Build.VERSION.SDK_INT)
+        } catch (e: GeneralSecurityException) {
+            Log.e(TAG, "APK signature invalid", e)
+            return false
+        } catch (e: IOException) {
+            Log.e(TAG, "Error verifying APK signature", e)
+            return false
+        }
+        
+        if (result == null) {
+            if (pinnedCertificateSha256 != null) {
+                Log.w(TAG, "APK has no v2/v3 signature to check the pinned certificate against")
+                return false
+            }
+            if (context == null) {
+                Log.w(TAG, "APK has no v2/v3 signature and no context for a v1 check, not checked")
+                return true
+            }
+            return verifyJarSignature(context, file)
+        }
+        
+        if (pinnedCertificateSha256 != null && !result.signedBy(pinnedCertificateSha256)) {
+            Log.w(TAG, "APK signer certificate mismatch: expected=$pinnedCertificateSha256, actual=${result.certificateSha256}")
+            return false
+        }
+        
+        Log.d(TAG, "APK signature verified: scheme=v${result.scheme}, signers=${result.certificateSha256}")
+        return true
+    }
+    
+    /**
+     * Checks a JAR (v1) signed APK using PackageManager.
+     * This is expensive and may fail for unsigned APKs.
+     */
+    private fun verifyJarSignature(context: Context, file: File): Boolean {
         return try {
             val packageManager = context.packageManager
             val packageInfo = packageManager.getPackageArchiveInfo(
@@ -270,15 +367,19 @@ internal object FileIntegrityVerifier {
     
     /**
      * Performs all configured integrity checks on a downloaded file.
+     * [streamedChecksum] is the digest computed during the download, if any; it saves the
+     * full-file read of the checksum check. Every other digest and the APK magic number are
+     * checked in one [VerificationPass] over the file.
      * @return IntegrityResult containing validation status and any errors
      */
-    fun verifyFile(
+    suspend fun verifyFile(
         file: File,
         config: IntegrityConfig,
         request: DownloadRequest,
         expectedSize: Long?,
         contentType: String?,
-        context: Context? = null
+        context: Context? = null,
+        streamedChecksum: String? = null
     ): IntegrityResult {
         val errors = mutableListOf<String>()
         
@@ -289,10 +390,44 @@ internal object FileIntegrityVerifier {
             }
         }
         
-        // 2. Checksum validation
-        if (config.verifyChecksum && request.expectedChecksum != null) {
-            if (!verifyChecksum(file, request.expectedChecksum, request.checksumAlgorithm)) {
-                errors.add("Checksum mismatch (${request.checksumAlgorithm.name})")
+        // 2. Checksums and the APK magic number, fed from a single read of the file
+        val checks = mutableListOf<VerificationPass.Check>()
+        var mainCheck: DigestCheck? = null
+        // An additional digest for the main algorithm is compared with the digest computed for
+        // [DownloadRequest.expectedChecksum] rather than hashed a second time.
+        var sameAlgorithmChecksum: String? = null
+        if (config.verifyChecksum) {
+            request.expectedChecksum?.let { expected ->
+                if (streamedChecksum != null) {
+                    if (!verifyChecksum(file, expected, request.checksumAlgorithm, streamedChecksum)) {
+                        errors.add("Checksum mismatch (${request.checksumAlgorithm.name})")
+                    }
+                } else {
+                    mainCheck = DigestCheck(request.checksumAlgorithm, expected).also { checks += it }
+                }
+            }
+            request.additionalChecksums.forEach { (algorithm, expected) ->
+                if (algorithm == request.checksumAlgorithm && request.expectedChecksum != null) {
+                    sameAlgorithmChecksum = expected
+                } else {
+                    checks += DigestCheck(algorithm, expected)
+                }
+            }
+        }
+        val magicCheck = if (config.verifyApkStructure && isApkFile(file)) ZipMagicCheck() else null
+        magicCheck?.let { checks += it }
+        val failed = VerificationPass().run(file, checks)
+        checks.filterIsInstance<DigestCheck>().forEach { check ->
+            Log.d(TAG, "Checksum (${check.algorithm.name}): ${check.actual}")
+        }
+        failed.forEach { (check, error) ->
+            Log.w(TAG, error)
+            if (check !== magicCheck) errors.add(error)
+        }
+        sameAlgorithmChecksum?.let { expected ->
+            val actual = streamedChecksum ?: mainCheck?.actual
+            if (!verifyChecksum(file, expected, request.checksumAlgorithm, actual)) {
+                errors.add("Checksum mismatch (additional ${request.checksumAlgorithm.name})")
             }
         }
         
@@ -304,16 +439,14 @@ internal object FileIntegrityVerifier {
             }
         }
         
-        // 4. APK structure validation
-        if (config.verifyApkStructure) {
-            if (!verifyApkStructure(file)) {
-                errors.add("APK structure validation failed")
-            }
+        // 4. APK ZIP structure, past the magic number checked in the pass
+        if (magicCheck != null && (magicCheck in failed || !verifyCentralDirectory(file))) {
+            errors.add("APK structure validation failed")
         }
         
-        // 5. APK signature validation (requires context)
-        if (config.verifyApkSignature && context != null) {
-            if (!verifyApkSignature(context, file)) {
+        // 5. APK signature validation (v1-only APKs require context)
+        if (config.verifyApkSignature || request.signerCertificateSha256 != null) {
+            if (!verifyApkSignature(context, file, request.signerCertificateSha256)) {
                 errors.add("APK signature validation failed")
             }
         }
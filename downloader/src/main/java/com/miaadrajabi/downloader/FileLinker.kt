@@ -0,0 +1,36 @@
+package com.miaadrajabi.downloader
+
+import android.system.ErrnoException
+import android.system.Os
+import android.util.Log
+import java.io.File
+import java.io.IOException
+
+/**
+ * 1. Gives a finished file a second name without downloading it again: a hard link when source
+ *    and target share a file system that allows it, a copy otherwise.
+ */
+internal object FileLinker {
+
+    private const val TAG = "FileLinker"
+
+    /**
+     * 2. Replaces [target] with the content of [source]. Throws [IOException] if neither
+     *    linking nor copying worked.
+     */
+    fun linkOrCopy(source: File, target: File) {
+        if (source.absoluteFile == target.absoluteFile) return
+        target.parentFile?.mkdirs()
+        if (target.exists() && !target.delete()) {
+            throw IOException("Unable to replace ${target.absolutePath}")
+        }
+        try {
+            Os.link(source.absolutePath, target.absolutePath)
+            return
+        } catch (error: ErrnoException) {
+            // EXDEV across volumes, EPERM on emulated/FUSE storage.
+            Log.d(TAG, "Hard link to ${target.absolutePath} failed (${error.message}); copying")
+        }
+        source.copyTo(target, overwrite = true)
+    }
+}
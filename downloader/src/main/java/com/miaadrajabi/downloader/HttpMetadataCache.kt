@@ -0,0 +1,144 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import okhttp3.Response
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * 1. What a server last told us about a URL, enough to plan chunks before any response arrives.
+ */
+internal data class HttpMetadata(
+    val finalUrl: String,
+    val contentLength: Long?,
+    val etag: String?,
+    val lastModified: String?,
+    val acceptsRanges: Boolean,
+    val contentType: String?,
+    val storedAt: Long = System.currentTimeMillis()
+) {
+    /**
+     * Value usable in `If-Range`: a strong ETag, otherwise Last-Modified. Weak ETags never
+     * satisfy a range condition, so they are skipped.
+     */
+    val validator: String?
+        get() = etag?.takeUnless { it.startsWith("W/") } ?: lastModified
+
+    companion object {
+        /**
+         * 2. Captures the metadata of a GET response. [contentLength] is the full size of the
+         *    file, not the length of a partial body.
+         */
+        fun from(response: Response, contentLength: Long?): HttpMetadata = HttpMetadata(
+            finalUrl = response.request.url.toString(),
+            contentLength = contentLength,
+            etag = response.header("ETag"),
+            lastModified = response.header("Last-Modified"),
+            acceptsRanges = response.code == 206 || response.header("Accept-Ranges") == "bytes",
+            contentType = response.header("Content-Type")
+        )
+    }
+}
+
+/**
+ * 3. URL-keyed [HttpMetadata] with TTL expiry and LRU eviction, mirrored to a JSON file so
+ *    scheduled jobs and retries in a new process can still skip the opening round trip.
+ * 4. A [file] of null keeps the cache in memory only; a [ttlMillis] of 0 disables it.
+ */
+internal class HttpMetadataCache(
+    private val file: File?,
+    private val ttlMillis: Long,
+    private val maxEntries: Int
+) {
+
+    private val entries = LinkedHashMap<String, HttpMetadata>(16, 0.75f, true)
+    private var loaded = false
+
+    /**
+     * 5. Returns the entry for [url] unless it is missing or older than the TTL.
+     */
+    @Synchronized
+    fun get(url: String, now: Long = System.currentTimeMillis()): HttpMetadata? {
+        if (ttlMillis <= 0L) return null
+        ensureLoaded()
+        val entry = entries[url] ?: return null
+        if (now - entry.storedAt > ttlMillis) {
+            entries.remove(url)
+            persist()
+            return null
+        }
+        return entry
+    }
+
+    @Synchronized
+    fun put(url: String, metadata: HttpMetadata) {
+        if (ttlMillis <= 0L) return
+        ensureLoaded()
+        entries[url] = metadata
+        trim()
+        persist()
+    }
+
+    @Synchronized
+    fun invalidate(url: String) {
+        ensureLoaded()
+        if (entries.remove(url) != null) persist()
+    }
+
+    private fun trim() {
+        val iterator = entries.entries.iterator()
+        while (entries.size > maxEntries && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) return
+        loaded = true
+        val source = file?.takeIf { it.exists() } ?: return
+        runCatching {
+            val array = JSONArray(source.readText())
+            for (i in 0 until array.length()) {
+                val obj = array.getJSONObject(i)
+                entries[obj.getString("url")] = obj.toMetadata()
+            }
+            trim()
+        }
+    }
+
+    private fun persist() {
+        val target = file ?: return
+        runCatching {
+            target.parentFile?.mkdirs()
+            val array = JSONArray()
+            entries.forEach { (url, metadata) ->
+                array.put(metadata.toJson().put("url", url))
+            }
+            target.writeText(array.toString())
+        }
+    }
+
+    private fun HttpMetadata.toJson(): JSONObject = JSONObject().apply {
+        put("finalUrl", finalUrl)
+        put("contentLength", contentLength ?: JSONObject.NULL)
+        put("etag", etag ?: JSONObject.NULL)
+        put("lastModified", lastModified ?: JSONObject.NULL)
+        put("acceptsRanges", acceptsRanges)
+        put("contentType", contentType ?: JSONObject.NULL)
+        put("storedAt", storedAt)
+    }
+
+    private fun JSONObject.toMetadata() = HttpMetadata(
+        finalUrl = getString("finalUrl"),
+        contentLength = if (isNull("contentLength")) null else getLong("contentLength"),
+        etag = optStringNullable("etag"),
+        lastModified = optStringNullable("lastModified"),
+        acceptsRanges = getBoolean("acceptsRanges"),
+        contentType = optStringNullable("contentType"),
+        storedAt = getLong("storedAt")
+    )
+
+    private fun JSONObject.optStringNullable(key: String): String? =
+        if (isNull(key)) null else getString(key)
+}
@@ -0,0 +1,177 @@
+package com.miaadrajabi.downloader
+
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * 1. Moves listener callbacks off the download threads. Every event is put in a per-handle
+ *    mailbox and delivered by the manager's own executor (or the main thread for listeners
+ *    registered with [ListenerDelivery.MAIN_THREAD]), so a slow listener never stalls reads.
+ * 2. Progress is conflated: a new progress event replaces one still waiting at the tail of the
+ *    mailbox. Lifecycle events (queued, started, paused, completed, failed, ...) are never dropped
+ *    and keep their order relative to progress.
+ */
+internal class ListenerDispatcher(
+    backgroundListeners: List<DownloadListener>,
+    mainThreadListeners: List<DownloadListener>,
+    private val backgroundExecutor: ExecutorService = newListenerExecutor(),
+    mainExecutor: Executor? = null
+) : DownloadListener {
+
+    private val backgroundLane = backgroundListeners.takeIf { it.isNotEmpty() }?.let { Lane(it, backgroundExecutor) }
+    private val lanes: List<Lane> = listOfNotNull(
+        backgroundLane,
+        mainThreadListeners.takeIf { it.isNotEmpty() }?.let { Lane(it, mainExecutor ?: mainThreadExecutor()) }
+    )
+
+    override fun onQueued(handle: DownloadHandle) = post(handle) { it.onQueued(handle) }
+
+    override fun onStarted(handle: DownloadHandle) = post(handle) { it.onStarted(handle) }
+
+    override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) =
+        post(handle, conflatable = true) { it.onProgress(handle, progress) }
+
+    override fun onPaused(handle: DownloadHandle) = post(handle) { it.onPaused(handle) }
+
+    override fun onResumed(handle: DownloadHandle) = post(handle) { it.onResumed(handle) }
+
+    override fun onCompleted(handle: DownloadHandle) = post(handle) { it.onCompleted(handle) }
+
+    override fun onFailed(handle: DownloadHandle, error: Throwable?) = post(handle) { it.onFailed(handle, error) }
+
+    override fun onRetry(handle: DownloadHandle, attempt: Int) = post(handle) { it.onRetry(handle, attempt) }
+
+    override fun onCancelled(handle: DownloadHandle) = post(handle) { it.onCancelled(handle) }
+
+    /**
+     * 3. Runs [action] on the background lane once every event already posted for [handle] has
+     *    reached the background listeners, e.g. to tear down the notification only after its
+     *    final frame was recorded. Runs inline when there are no background listeners.
+     */
+    fun afterDelivered(handle: DownloadHandle, action: () -> Unit) {
+        val lane = backgroundLane ?: return action()
+        lane.post(handle.id, ListenerEvent(conflatable = false, call = {}, barrier = action))
+    }
+
+    /**
+     * 4. Lets already queued events drain, then stops the background executor.
+     */
+    fun shutdown() {
+        backgroundExecutor.shutdown()
+    }
+
+    private fun post(handle: DownloadHandle, conflatable: Boolean = false, call: (DownloadListener) -> Unit) {
+        val event = ListenerEvent(conflatable, call)
+        lanes.forEach { it.post(handle.id, event) }
+    }
+
+    /**
+     * 5. Listeners sharing one delivery thread, with one mailbox per active handle. A mailbox is
+     *    drained by at most one task at a time, which keeps per-handle order.
+     */
+    private class Lane(
+        private val listeners: List<DownloadListener>,
+        private val executor: Executor
+    ) {
+        private val mailboxes = HashMap<String, Mailbox>()
+
+        fun post(handleId: String, event: ListenerEvent) {
+            val mailbox = synchronized(this) {
+                val box = mailboxes.getOrPut(handleId) { Mailbox(handleId) }
+                if (!box.offer(event) || box.scheduled) return
+                box.scheduled = true
+                box
+            }
+            schedule(mailbox)
+        }
+
+        private fun schedule(mailbox: Mailbox) {
+            try {
+                executor.execute { drain(mailbox) }
+            } catch (_: RejectedExecutionException) {
+                // The manager was shut down; late events are still delivered, just inline.
+                drain(mailbox)
+            }
+        }
+
+        private fun drain(mailbox: Mailbox) {
+            repeat(DRAIN_BATCH) {
+                val event = synchronized(this) {
+                    mailbox.poll() ?: run {
+                        mailbox.scheduled = false
+                        mailboxes.remove(mailbox.handleId)
+                        return
+                    }
+                }
+                val barrier = event.barrier
+                if (barrier != null) {
+                    try {
+                        barrier()
+                    } catch (error: Exception) {
+                        Log.w(TAG, "Delivery action failed for ${mailbox.handleId}", error)
+                    }
+                } else {
+                    listeners.forEach { listener ->
+                        try {
+                            event.call(listener)
+                        } catch (error: Exception) {
+                            Log.w(TAG, "Listener failed for ${mailbox.handleId}", error)
+                        }
+                    }
+                }
+            }
+            // Yield so other handles on this lane are not starved by a busy one.
+            schedule(mailbox)
+        }
+    }
+
+    /**
+     * 6. Pending events of one handle. Progress never grows it past [CAPACITY]: once the mailbox
+     *    is that far behind, a progress event that cannot be conflated is skipped, because the
+     *    next one carries newer numbers anyway.
+     */
+    private class Mailbox(val handleId: String) {
+        private val events = ArrayDeque<ListenerEvent>()
+        var scheduled = false
+
+        fun offer(event: ListenerEvent): Boolean {
+            if (event.conflatable) {
+                if (events.lastOrNull()?.conflatable == true) {
+                    events[events.lastIndex] = event
+                    return true
+                }
+                if (events.size >= CAPACITY) return false
+            }
+            events.addLast(event)
+            return true
+        }
+
+        fun poll(): ListenerEvent? = events.removeFirstOrNull()
+    }
+
+    private class ListenerEvent(
+        val conflatable: Boolean,
+        val call: (DownloadListener) -> Unit,
+        val barrier: (() -> Unit)? = null
+    )
+
+    private companion object {
+        private const val TAG = "ListenerDispatcher"
+        private const val CAPACITY = 64
+        private const val DRAIN_BATCH = 16
+
+        fun newListenerExecutor(): ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "download-listeners").apply { isDaemon = true }
+        }
+
+        fun mainThreadExecutor(): Executor {
+            val handler = Handler(Looper.getMainLooper())
+            return Executor { handler.post(it) }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.miaadrajabi.downloader
+
+import android.util.Log
+import java.io.IOException
+import java.lang.reflect.Method
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.jvm.Volatile
+import kotlin.math.min
+import okio.Buffer
+import okio.Timeout
+
+/**
+ * 1. Writes a chunk through a [MappedByteBuffer] window that slides along the chunk, so large
+ *    transfers avoid a write syscall per segment while address space stays bounded by [windowBytes].
+ * 2. The file must already be at least [fileLength] bytes long; mapping never grows it.
+ * 3. A window is forced and unmapped as soon as the next one is mapped, and on [close], so only
+ *    one mapping per sink is alive. [flush] forces the current window and may be called from
+ *    another thread (e.g. on pause); unmapping waits for it.
+ */
+internal class MappedRegionSink(
+    private val channel: FileChannel,
+    position: Long,
+    private val fileLength: Long,
+    private val windowBytes: Long
+) : PositionalSink {
+
+    private val cursor = Buffer.UnsafeCursor()
+    private val lock = Any()
+    @Volatile private var window: MappedByteBuffer? = null
+
+    override var position: Long = position
+        private set
+
+    override fun write(source: Buffer, byteCount: Long) {
+        require(byteCount in 0..source.size) { "byteCount=$byteCount size=${source.size}" }
+        var remaining = byteCount
+        while (remaining > 0L) {
+            val target = windowAt(position)
+            val length = source.readUnsafe(cursor).use {
+                cursor.seek(0L)
+                val segmentLength = min(remaining, (cursor.end - cursor.start).toLong())
+                val count = min(segmentLength, target.remaining().toLong()).toInt()
+                target.put(cursor.data!!, cursor.start, count)
+                count
+            }
+            source.skip(length.toLong())
+            remaining -= length
+            position += length
+        }
+    }
+
+    private fun windowAt(offset: Long): MappedByteBuffer {
+        window?.takeIf { it.hasRemaining() }?.let { return it }
+        if (offset >= fileLength) {
+            throw IOException("Mapped write at $offset exceeds file length $fileLength")
+        }
+        release()
+        val size = min(windowBytes, fileLength - offset)
+        return channel.map(FileChannel.MapMode.READ_WRITE, offset, size).also { window = it }
+    }
+
+    /**
+     * 4. Forces the current window and unmaps it. Only the writing thread releases, so no
+     *    write can touch a window after it is gone.
+     */
+    private fun release() {
+        synchronized(lock) {
+            val old = window ?: return
+            window = null
+            old.force()
+            MappedBuffers.unmap(old)
+        }
+    }
+
+    override fun flush() {
+        synchronized(lock) {
+            window?.force()
+        }
+    }
+
+    override fun timeout(): Timeout = Timeout.NONE
+
+    override fun close() = release()
+}
+
+/**
+ * 5. Releases a mapping right away instead of when the buffer is garbage collected. There is no
+ *    public API for it: `Unsafe.invokeCleaner` is used on Java 9+, the buffer's cleaner on Java 8
+ *    and Android. If neither is reachable the mapping is left to the GC, as before.
+ */
+internal object MappedBuffers {
+    private const val TAG = "MappedBuffers"
+
+    @Volatile private var unmapper: ((ByteBuffer) -> Unit)? = invokeCleaner() ?: ::cleanDirect
+
+    fun unmap(buffer: MappedByteBuffer) {
+        val current = unmapper ?: return
+        try {
+            current(buffer)
+        } catch (error: Throwable) {
+            Log.w(TAG, "Unable to unmap buffers, leaving them to the GC", error)
+            unmapper = null
+        }
+    }
+
+    private fun invokeCleaner(): ((ByteBuffer) -> Unit)? = try {
+        val unsafeClass = Class.forName("sun.misc.Unsafe")
+        val method: Method = unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java)
+        val unsafe = unsafeClass.getDeclaredField("theUnsafe").apply { isAccessible = true }.get(null)
+        val invoke: (ByteBuffer) -> Unit = { buffer -> method.invoke(unsafe, buffer) }
+        invoke
+    } catch (_: ReflectiveOperationException) {
+        null
+    }
+
+    private fun cleanDirect(buffer: ByteBuffer) {
+        val cleaner = buffer.javaClass.getMethod("cleaner").apply { isAccessible = true }.invoke(buffer) ?: return
+        cleaner.javaClass.getMethod("clean").apply { isAccessible = true }.invoke(cleaner)
+    }
+}
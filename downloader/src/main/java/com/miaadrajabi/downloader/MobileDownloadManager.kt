@@ -2,10 +2,13 @@ package com.miaadrajabi.downloader
 
 import android.content.Context
 import android.util.Log
+import java.io.File
 import java.io.IOException
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.coroutineContext
 import kotlin.math.max
+import kotlin.math.min
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -13,8 +16,10 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import okhttp3.Call
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.OkHttpClient
 
 /**
@@ -29,17 +34,51 @@ class MobileDownloadManager private constructor(
     private val appContext = context.applicationContext ?: context
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
     private val notificationHelper = DownloadNotificationHelper(appContext, config.notification)
-    private val listeners: List<DownloadListener> = config.listeners + notificationHelper.listener
+    private val listenerDispatcher = ListenerDispatcher(
+        backgroundListeners = config.listeners + notificationHelper.listener,
+        mainThreadListeners = config.mainThreadListeners
+    )
+    private val coalescer = DownloadCoalescer(listenerDispatcher, scope) { handle ->
+        pendingDestinations.remove(handle.id)
+        markDownloadFinished(handle)
+    }
+    private val listeners: List<DownloadListener> = listOf(coalescer)
     private val storageResolver = StorageResolver(appContext, config.storage)
     private val scheduler = DownloadScheduler(appContext, config.scheduler)
     private val pendingDestinations = ConcurrentHashMap<String, StorageResolution>()
     private val activeSessions = ConcurrentHashMap<String, DownloadSession>()
     private val pausedStates = ConcurrentHashMap<String, PausedState>()
-    private val chunkStateSnapshots = ConcurrentHashMap<String, MutableMap<Int, ChunkStateData>>()
+    private val preemptedStates = ConcurrentHashMap<String, PausedState>()
+    private val stopsDuringPreemption = ConcurrentHashMap.newKeySet<String>()
+    private val progressLedgers = ConcurrentHashMap<String, ChunkProgressLedger>()
     private val lastProgress = ConcurrentHashMap<String, Long>()
+    private val resumeValidators = ConcurrentHashMap<String, String>()
     private val httpClient = OkHttpClient()
-    private val chunkedDownloader = ChunkedDownloader(httpClient)
+    private val bufferPool = ByteBufferPool(config.chunking.bufferPoolLimitBytes)
+    private val metadataCache = HttpMetadataCache(
+        File(appContext.cacheDir, "http_metadata_cache.json"),
+        config.chunking.metadataCacheTtlMillis,
+        config.chunking.metadataCacheMaxEntries
+    )
+    private val contentIndex = ContentIndex(
+        File(appContext.cacheDir, "content_index.json"),
+        config.storage.contentIndexMaxEntries
+    )
+    private val progressTicker = ProgressTicker(scope)
+    private val chunkedDownloader = ChunkedDownloader(
+        httpClient,
+        bufferPool,
+        storageResolver,
+        metadataCache,
+        progressTicker
+    )
+    private val bandwidthLimiter = BandwidthLimiter(config.scheduler)
     private val activeDownloads = AtomicInteger(0)
+    private val downloadQueue = DownloadQueue<PendingStart>(
+        config.queue.maxActiveDownloads,
+        config.queue.maxConnectionsPerHost,
+        config.queue.policy
+    )
 
     init {
         DownloadNotificationRegistry.helper = notificationHelper
@@ -61,22 +100,19 @@ class MobileDownloadManager private constructor(
                 request = pausedData.request,
                 resolution = pausedData.resolution,
                 completedBytes = completed,
-                chunkStates = chunkList
+                chunkStates = chunkList,
+                validator = pausedData.validator
             )
             pendingDestinations[pausedData.handleId] = pausedData.resolution
             if (chunkList.isNotEmpty()) {
-                chunkStateSnapshots[pausedData.handleId] =
-                    chunkList.associateBy { it.index }.toMutableMap()
+                progressLedgers[pausedData.handleId] = ChunkProgressLedger(chunkList)
             }
             lastProgress[pausedData.handleId] = completed
         }
     }
 
     private fun currentChunkStates(handleId: String): List<ChunkStateData> {
-        return chunkStateSnapshots[handleId]?.values
-            ?.map { it.copy() }
-            ?.sortedBy { it.index }
-            ?: emptyList()
+        return progressLedgers[handleId]?.snapshot() ?: emptyList()
     }
 
     /**
@@ -86,9 +122,20 @@ class MobileDownloadManager private constructor(
         get() = config
 
     /**
-     * 4. Adds a new download request to the active queue and starts transfer immediately.
+     * 4. Adds a new download request to the queue. It starts as soon as [QueueConfig] limits
+     *    and the queue policy allow. A request for a resource that is already being downloaded
+     *    joins that transfer instead (see [DownloadCoalescer]), and one whose expected checksum
+     *    matches a verified file on disk is served from that file (see [ContentIndex]).
      */
     fun enqueue(request: DownloadRequest): DownloadHandle {
+        coalescer.find(request)?.let { transfer ->
+            coalesce(request, transfer)?.let { return it }
+        }
+        request.expectedChecksum?.let { checksum ->
+            contentIndex.lookup(request.checksumAlgorithm, checksum)?.let { local ->
+                return serveLocally(request, local)
+            }
+        }
         val resolution = storageResolver.resolve(request)
         pendingDestinations[request.id] = resolution
 
@@ -100,38 +147,219 @@ class MobileDownloadManager private constructor(
         )
 
         listeners.forEach { it.onQueued(handle) }
+        resumeValidators.remove(handle.id)
+        coalescer.track(request, handle, resolution)
+        submit(PendingStart(request, handle, resolution, startOffset = 0L, chunkStates = emptyList()))
+        return handle
+    }
+
+    /**
+     * 4.5 Attaches [request] to the running [transfer] of the same resource. Returns null if the
+     *     transfer ended meanwhile, in which case the request is downloaded on its own.
+     */
+    private fun coalesce(request: DownloadRequest, transfer: DownloadCoalescer.Transfer): DownloadHandle? {
+        if (request.id == transfer.primary.id) return transfer.primary
+        // Resolving the shared file again would truncate it mid-transfer.
+        val sharedFile = File(transfer.resolution.directory, request.fileName).absoluteFile == transfer.resolution.file.absoluteFile
+        val resolution = if (sharedFile) transfer.resolution else storageResolver.resolve(request)
+        val handle = DownloadHandle(id = request.id, source = request.url)
+        pendingDestinations[request.id] = resolution
+        activeDownloads.incrementAndGet()
+        if (!coalescer.attach(transfer, handle, resolution)) {
+            pendingDestinations.remove(request.id)
+            activeDownloads.decrementAndGet()
+            return null
+        }
+        return handle
+    }
+
+    /**
+     * 4.7 The download [handleId] controls: its own, or the transfer it joined. Null once its
+     *     caller stopped a transfer that still runs for the requests that joined it.
+     */
+    private fun transferOf(handleId: String): String? = when {
+        coalescer.isDetachedPrimary(handleId) -> null
+        else -> coalescer.primaryOf(handleId)?.id ?: handleId
+    }
+
+    /**
+     * 4.6 Completes [request] by linking or copying the verified [local] file to its destination,
+     *     off the caller's thread. If that fails the request is downloaded as usual.
+     */
+    private fun serveLocally(request: DownloadRequest, local: File): DownloadHandle {
+        // Resolving the indexed file itself would delete it.
+        val preview = storageResolver.resolve(request, dryRun = true)
+        val resolution = if (preview.file.absoluteFile == local.absoluteFile) preview else storageResolver.resolve(request)
+        pendingDestinations[request.id] = resolution
+        activeDownloads.incrementAndGet()
+        val handle = DownloadHandle(id = request.id, source = request.url)
+        listeners.forEach { it.onQueued(handle) }
+        scope.launch {
+            try {
+                FileLinker.linkOrCopy(local, resolution.file)
+            } catch (error: IOException) {
+                Log.w("MobileDownloadManager", "Unable to reuse ${local.absolutePath}; downloading instead", error)
+                val fresh = storageResolver.resolve(request)
+                pendingDestinations[request.id] = fresh
+                resumeValidators.remove(handle.id)
+                coalescer.track(request, handle, fresh)
+                submit(PendingStart(request, handle, fresh, startOffset = 0L, chunkStates = emptyList()))
+                return@launch
+            }
+            listeners.forEach { it.onStarted(handle) }
+            if (config.installer.promptOnCompletion) {
+                DownloadInstaller.maybePromptInstall(appContext, resolution.file, config.installer)
+            }
+            listeners.forEach { it.onCompleted(handle) }
+            pendingDestinations.remove(handle.id)
+            markDownloadFinished(handle)
+        }
+        return handle
+    }
+
+    private fun submit(pending: PendingStart) {
+        offer(pending)
+        startQueued()
+    }
+
+    private fun offer(pending: PendingStart) {
+        val request = pending.request
+        val remaining = metadataCache.get(request.url)?.contentLength?.let { max(0L, it - pending.startOffset) }
+        downloadQueue.offer(
+            request.id,
+            request,
+            hostOf(request.url),
+            wantedConnections(config.chunking),
+            remaining,
+            pending
+        )
+    }
+
+    /**
+     * 4.1 Starts every waiting download the queue lets through. Called after each submit and
+     *     whenever a running download ends. With [QueueConfig.preemption], a waiting download
+     *     that still cannot start may push out a running one of lower priority.
+     */
+    private fun startQueued() {
+        synchronized(downloadQueue) {
+            while (true) {
+                val ticket = downloadQueue.poll() ?: break
+                start(ticket)
+            }
+            if (config.queue.preemption) {
+                downloadQueue.preemptionVictim()?.let { preempt(it.id) }
+            }
+        }
+    }
+
+    private fun start(ticket: DownloadQueue.Ticket<PendingStart>) {
+        val pending = ticket.payload
+        val request = pending.request
+        val handleId = pending.handle.id
         val progressTrackingListener = object : DownloadListener {
             override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) {
                 lastProgress[handle.id] = progress.bytesDownloaded
             }
         }
-        chunkStateSnapshots.remove(handle.id)
-        val chunkStateUpdater: (ChunkStateData) -> Unit = { state ->
-            val map = chunkStateSnapshots.getOrPut(handle.id) { ConcurrentHashMap() }
-            map[state.index] = state
+        val progressLedger = ChunkProgressLedger(pending.chunkStates)
+        progressLedgers[handleId] = progressLedger
+        if (pending.afterPreemption) {
+            DownloadConfigStore.removePausedState(appContext, handleId)
         }
-        val session = DownloadSession(request, resolution, Job(), CallTracker())
+        val session = DownloadSession(request, pending.resolution, Job(), CallTracker())
         val job = scope.launch(session.job) {
             runDownloadWithRetry(
                 request,
-                handle,
-                resolution,
-                startOffset = 0L,
+                pending.handle,
+                pending.resolution,
+                startOffset = pending.startOffset,
                 callTracker = session.callTracker,
                 extraListeners = listOf(progressTrackingListener),
-                existingChunkStates = emptyList(),
-                chunkStateUpdater = chunkStateUpdater
+                existingChunkStates = pending.chunkStates,
+                progressLedger = progressLedger,
+                downloadConfig = configFor(ticket.connections)
             )
         }
-        activeSessions[handle.id] = session.copy(job = job)
+        activeSessions[handleId] = session.copy(job = job)
         job.invokeOnCompletion {
-            activeSessions.remove(handle.id)
-            lastProgress.remove(handle.id)
-            chunkStateSnapshots.remove(handle.id)
+            activeSessions.remove(handleId)
+            lastProgress.remove(handleId)
+            progressLedgers.remove(handleId, progressLedger)
+            resumeValidators.remove(handleId)
+            synchronized(downloadQueue) {
+                preemptedStates.remove(handleId)?.let { requeuePreempted(pending.handle, it) }
+                downloadQueue.release(ticket)
+            }
+            startQueued()
+        }
+    }
+
+    /**
+     * 4.4 Pauses a running download to free capacity for a more urgent one. Uses the same
+     *     snapshot as [pause] but fires no listener event; the download goes back into the queue
+     *     once its job has stopped.
+     */
+    private fun preempt(handleId: String) {
+        val session = activeSessions[handleId] ?: return
+        preemptedStates[handleId] = captureSession(handleId, session)
+        session.job.cancel(CancellationException("Preempted by a higher-priority download"))
+        session.callTracker.cancelAll()
+    }
+
+    private fun requeuePreempted(handle: DownloadHandle, state: PausedState) {
+        when {
+            stopsDuringPreemption.remove(handle.id) -> {
+                pendingDestinations.remove(handle.id)
+                DownloadConfigStore.removePausedState(appContext, handle.id)
+                bandwidthLimiter.forget(handle.id)
+                listeners.forEach { it.onCancelled(handle) }
+                markDownloadFinished(handle)
+            }
+            // The user paused it while it was stopping; it stays paused.
+            pausedStates.containsKey(handle.id) -> Unit
+            else -> {
+                lastProgress[handle.id] = state.completedBytes
+                state.validator?.let { resumeValidators[handle.id] = it }
+                offer(
+                    PendingStart(
+                        state.request,
+                        handle,
+                        state.resolution,
+                        state.completedBytes,
+                        state.chunkStates,
+                        afterPreemption = true
+                    )
+                )
+            }
         }
-        return handle
     }
 
+    /**
+     * 4.2 Connections a download could open with [chunking], i.e. what it reserves on its host.
+     */
+    private fun wantedConnections(chunking: ChunkingConfig): Int = when {
+        !chunking.preferParallel -> 1
+        chunking.adaptiveParallelism -> chunking.maxParallelism
+        else -> chunking.chunkCount
+    }
+
+    /**
+     * 4.3 The manager config with chunk parallelism capped at the connections a download got.
+     */
+    private fun configFor(connections: Int): DownloadConfig {
+        val chunking = config.chunking
+        if (wantedConnections(chunking) <= connections) return config
+        return config.copy(
+            chunking = chunking.copy(
+                chunkCount = min(chunking.chunkCount, connections),
+                minParallelism = min(chunking.minParallelism, connections),
+                maxParallelism = min(chunking.maxParallelism, connections)
+            )
+        )
+    }
+
+    private fun hostOf(url: String): String = url.toHttpUrlOrNull()?.host ?: url
+
     /**
      * 5. Provides visibility into where a request will land without mutating files.
      */
@@ -161,49 +389,71 @@ class MobileDownloadManager private constructor(
     }
 
     /**
-     * 9. Attempts to pause an in-flight download. Returns true if a job was cancelled.
+     * 9. Attempts to pause an in-flight download. Returns true if a job was cancelled. For a
+     *    request that joined another one's transfer, the shared transfer is paused.
      */
     fun pause(handleId: String): Boolean {
+        return pauseTransfer(transferOf(handleId) ?: return false)
+    }
+
+    private fun pauseTransfer(handleId: String): Boolean {
+        downloadQueue.remove(handleId)?.let { pending ->
+            pauseQueued(pending)
+            return true
+        }
         val session = activeSessions[handleId] ?: return false
+        pausedStates[handleId] = captureSession(handleId, session)
+        val handle = DownloadHandle(handleId, session.request.url)
+        session.job.cancel(CancellationException("Paused by user"))
+        session.callTracker.cancelAll()
+        listeners.forEach { it.onPaused(handle) }
+        return true
+    }
+
+    /**
+     * 9.1 Snapshots and persists the progress of a running download before it is cancelled.
+     */
+    private fun captureSession(handleId: String, session: DownloadSession): PausedState {
         val chunkStates = currentChunkStates(handleId)
+        // Everything in the snapshot was written before this point; make it durable first.
+        chunkedDownloader.flushMappedOutput(handleId)
         val completedBytes = if (chunkStates.isNotEmpty()) {
             chunkStates.totalCompletedBytes()
         } else {
-            lastProgress[handleId] ?: session.resolution.file.length()
+            // The preallocated file is full length from the start; its size is no offset.
+            lastProgress[handleId] ?: 0L
         }
-        pausedStates[handleId] = PausedState(
-            request = session.request,
-            resolution = session.resolution,
-            completedBytes = completedBytes,
-            chunkStates = chunkStates
-        )
+        val validator = resumeValidators[handleId]
         DownloadConfigStore.savePausedState(
             appContext,
             handleId,
             session.request,
             session.resolution,
             completedBytes,
-            chunkStates
+            chunkStates,
+            validator
+        )
+        return PausedState(
+            request = session.request,
+            resolution = session.resolution,
+            completedBytes = completedBytes,
+            chunkStates = chunkStates,
+            validator = validator
         )
-        val handle = DownloadHandle(handleId, session.request.url)
-        session.job.cancel(CancellationException("Paused by user"))
-        session.callTracker.cancelAll()
-        listeners.forEach { it.onPaused(handle) }
-        return true
     }
 
     /**
-     * 10. Resumes a paused download from the last saved offset.
+     * 10. Resumes a paused download from the last saved offset. For a request that joined
+     *     another one's transfer, the shared transfer is resumed.
      */
     fun resume(handleId: String): Boolean {
+        return resumeTransfer(transferOf(handleId) ?: return false)
+    }
+
+    private fun resumeTransfer(handleId: String): Boolean {
         val paused = pausedStates.remove(handleId) ?: return false
         DownloadConfigStore.removePausedState(appContext, handleId)
         val handle = DownloadHandle(id = paused.request.id, source = paused.request.url)
-        val progressTrackingListener = object : DownloadListener {
-            override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) {
-                lastProgress[handle.id] = progress.bytesDownloaded
-            }
-        }
         val chunkStates = paused.chunkStates
         val resumeBytes = if (chunkStates.isNotEmpty()) {
             chunkStates.totalCompletedBytes()
@@ -211,67 +461,129 @@ class MobileDownloadManager private constructor(
             paused.completedBytes
         }
         lastProgress[handleId] = resumeBytes
-        chunkStateSnapshots[handleId] = chunkStates.associateBy { it.index }.toMutableMap()
-        val chunkStateUpdater: (ChunkStateData) -> Unit = { state ->
-            val map = chunkStateSnapshots.getOrPut(handleId) { ConcurrentHashMap() }
-            map[state.index] = state
-        }
-        val session = DownloadSession(paused.request, paused.resolution, Job(), CallTracker())
-        val job = scope.launch(session.job) {
-            runDownloadWithRetry(
-                paused.request,
-                handle,
-                paused.resolution,
-                startOffset = resumeBytes,
-                callTracker = session.callTracker,
-                extraListeners = listOf(progressTrackingListener),
-                existingChunkStates = chunkStates,
-                chunkStateUpdater = chunkStateUpdater
-            )
-        }
-        activeSessions[handleId] = session.copy(job = job)
+        paused.validator?.let { resumeValidators[handleId] = it }
         listeners.forEach { it.onResumed(handle) }
-        job.invokeOnCompletion {
-            activeSessions.remove(handleId)
-            lastProgress.remove(handleId)
-            chunkStateSnapshots.remove(handleId)
-        }
+        submit(PendingStart(paused.request, handle, paused.resolution, resumeBytes, chunkStates))
         return true
     }
 
     /**
-     * 11. Stops and forgets an active/paused download entirely.
+     * 10.1 Pauses a download that is still waiting in the queue; nothing was transferred in
+     *      this run, so the state it was queued with is saved as is.
+     */
+    private fun pauseQueued(pending: PendingStart) {
+        val handleId = pending.handle.id
+        val validator = resumeValidators[handleId]
+        pausedStates[handleId] = PausedState(
+            request = pending.request,
+            resolution = pending.resolution,
+            completedBytes = pending.startOffset,
+            chunkStates = pending.chunkStates,
+            validator = validator
+        )
+        DownloadConfigStore.savePausedState(
+            appContext,
+            handleId,
+            pending.request,
+            pending.resolution,
+            pending.startOffset,
+            pending.chunkStates,
+            validator
+        )
+        listeners.forEach { it.onPaused(pending.handle) }
+    }
+
+    /**
+     * 11. Stops and forgets an active/paused download entirely. A transfer that other requests
+     *     joined keeps running for them; only the caller of [stop] is cancelled.
      */
     fun stop(handleId: String): Boolean {
+        coalescer.detach(handleId)?.let { follower ->
+            pendingDestinations.remove(handleId)
+            listeners.forEach { it.onCancelled(follower.handle) }
+            markDownloadFinished(follower.handle)
+            // The caller that started the transfer stopped earlier; nobody needs it any more.
+            if (coalescer.abandoned(follower.transfer)) stopTransfer(follower.transfer.primary.id)
+            return true
+        }
+        if (coalescer.isDetachedPrimary(handleId)) return false
+        coalescer.detachPrimary(handleId)?.let { handle ->
+            // Bypasses the coalescer, which now keeps the transfer's events from this caller.
+            listenerDispatcher.onCancelled(handle)
+            return true
+        }
+        return stopTransfer(handleId)
+    }
+
+    private fun stopTransfer(handleId: String): Boolean {
+        val queued = synchronized(downloadQueue) {
+            if (preemptedStates.containsKey(handleId)) {
+                // Finished by requeuePreempted once the preempted job has stopped.
+                stopsDuringPreemption += handleId
+                return true
+            }
+            downloadQueue.remove(handleId)
+        }
+        if (queued != null) {
+            pendingDestinations.remove(handleId)
+            lastProgress.remove(handleId)
+            resumeValidators.remove(handleId)
+            DownloadConfigStore.removePausedState(appContext, handleId)
+            bandwidthLimiter.forget(handleId)
+            listeners.forEach { it.onCancelled(queued.handle) }
+            markDownloadFinished(queued.handle)
+            return true
+        }
+
         val session = activeSessions.remove(handleId)
         if (session != null) {
             pausedStates.remove(handleId)
             pendingDestinations.remove(handleId)
-            chunkStateSnapshots.remove(handleId)
+            progressLedgers.remove(handleId)
             DownloadConfigStore.removePausedState(appContext, handleId)
-            session.callTracker.cancelAll()
             session.job.cancel(CancellationException("Stopped by user"))
+            session.callTracker.cancelAll()
             return true
         }
 
         val paused = pausedStates.remove(handleId)
         if (paused != null) {
             pendingDestinations.remove(handleId)
-            chunkStateSnapshots.remove(handleId)
+            progressLedgers.remove(handleId)
             DownloadConfigStore.removePausedState(appContext, handleId)
-            listeners.forEach { it.onCancelled(DownloadHandle(handleId, paused.request.url)) }
-            markDownloadFinished()
+            bandwidthLimiter.forget(handleId)
+            val handle = DownloadHandle(handleId, paused.request.url)
+            listeners.forEach { it.onCancelled(handle) }
+            markDownloadFinished(handle)
             return true
         }
 
         return false
     }
 
+    /**
+     * 11.1 Changes the combined bandwidth cap of all downloads at runtime, taking precedence over
+     *      [SchedulerConfig.maxBytesPerSecond] and its profiles. 0 removes the cap; null returns
+     *      to the configured one. Reads already waiting pick up the new rate.
+     */
+    fun setBandwidthLimit(bytesPerSecond: Long?) {
+        bandwidthLimiter.setGlobalLimit(bytesPerSecond)
+    }
+
+    /**
+     * 11.2 Changes the bandwidth cap of one download, replacing [DownloadRequest.maxBytesPerSecond]
+     *      until it finishes; null removes the cap. Kept across pause and resume.
+     */
+    fun setBandwidthLimit(handleId: String, bytesPerSecond: Long?) {
+        bandwidthLimiter.setDownloadLimit(handleId, bytesPerSecond)
+    }
+
     /**
      * 9. Shuts down resources and cancels background scope for cleanup.
      */
     fun shutdown() {
         scope.coroutineContext.cancel()
+        listenerDispatcher.shutdown()
         DownloadManagerRegistry.manager = null
     }
 
@@ -283,7 +595,8 @@ class MobileDownloadManager private constructor(
         callTracker: CallTracker? = null,
         extraListeners: List<DownloadListener> = emptyList(),
         existingChunkStates: List<ChunkStateData> = emptyList(),
-        chunkStateUpdater: ((ChunkStateData) -> Unit)? = null
+        progressLedger: ChunkProgressLedger? = null,
+        downloadConfig: DownloadConfig = config
     ) {
         val policy = config.retryPolicy
         var attempt = 1
@@ -291,21 +604,43 @@ class MobileDownloadManager private constructor(
         var shouldFinalize = true
         var plannedChunkStates = existingChunkStates
         var currentStartOffset = startOffset
+        // A changed remote file voids the saved offsets; the downloader restarts at byte 0.
+        val validatorUpdater: (String?, Boolean) -> Unit = { validator, restarted ->
+            if (validator != null) resumeValidators[handle.id] = validator else resumeValidators.remove(handle.id)
+            if (restarted) {
+                progressLedger?.clear()
+                lastProgress[handle.id] = 0L
+            }
+        }
+        val throttle = bandwidthLimiter.throttleFor(handle.id, request.maxBytesPerSecond)
+        val context = coroutineContext
+        // Pause, preemption and stop cancel the job and then abort its calls, so the aborted
+        // read can surface as an IOException; it is a cancellation, not a reason to retry.
+        val checkNotStopped = {
+            if (!context.isActive || pausedStates.containsKey(handle.id) || preemptedStates.containsKey(handle.id)) {
+                throw CancellationException("Download stopped")
+            }
+        }
         try {
             while (attempt <= policy.maxAttempts) {
                 try {
+                    // User listeners go through the dispatcher; the extra ones only record
+                    // bookkeeping for pause/retry and stay inline.
                     val allListeners = listeners + extraListeners
                     allListeners.forEach { it.onStarted(handle) }
                     val downloadResult = chunkedDownloader.download(
                         request,
                         resolution,
                         handle,
-                        config,
+                        downloadConfig,
                         allListeners,
                         currentStartOffset,
                         callTracker,
                         plannedChunkStates,
-                        chunkStateUpdater
+                        progressLedger,
+                        resumeValidators[handle.id],
+                        validatorUpdater,
+                        throttle
                     )
                     
                     // Perform integrity validation if configured
@@ -313,7 +648,8 @@ class MobileDownloadManager private constructor(
                         config.integrity.verifyChecksum || 
                         config.integrity.verifyApkStructure ||
                         config.integrity.verifyContentType ||
-                        config.integrity.verifyApkSignature) {
+                        config.integrity.verifyApkSignature ||
+                        request.signerCertificateSha256 != null) {
                         
                         val integrityResult = FileIntegrityVerifier.verifyFile(
                             file = resolution.file,
@@ -321,7 +657,8 @@ class MobileDownloadManager private constructor(
                             request = request,
                             expectedSize = downloadResult.totalBytes,
                             contentType = downloadResult.contentType,
-                            context = appContext
+                            context = appContext,
+                            streamedChecksum = downloadResult.checksum
                         )
                         
                         if (!integrityResult.isValid) {
@@ -339,7 +676,7 @@ class MobileDownloadManager private constructor(
                             }
                             
                             // Clear chunk states for retry from start
-                            chunkStateSnapshots.remove(handle.id)
+                            progressLedger?.clear()
                             lastProgress.remove(handle.id)
                             
                             throw IntegrityValidationException(
@@ -350,6 +687,15 @@ class MobileDownloadManager private constructor(
                         }
                     }
                     
+                    if (config.integrity.verifyChecksum) {
+                        // Verified above, so later requests for the same content can reuse it.
+                        request.expectedChecksum?.let {
+                            contentIndex.record(request.checksumAlgorithm, it, resolution.file)
+                        }
+                        request.additionalChecksums.forEach { (algorithm, checksum) ->
+                            contentIndex.record(algorithm, checksum, resolution.file)
+                        }
+                    }
                     if (config.installer.promptOnCompletion) {
                         DownloadInstaller.maybePromptInstall(appContext, resolution.file, config.installer)
                     }
@@ -357,6 +703,7 @@ class MobileDownloadManager private constructor(
                     pendingDestinations.remove(handle.id)
                     return
                 } catch (error: IntegrityValidationException) {
+                    checkNotStopped()
                     // Integrity error: file already deleted, retry from start
                     if (attempt >= policy.maxAttempts) {
                         listeners.forEach { it.onFailed(handle, error) }
@@ -367,13 +714,15 @@ class MobileDownloadManager private constructor(
                         // Reset states for retry from start (not resume)
                         plannedChunkStates = emptyList()
                         currentStartOffset = 0L
-                        chunkStateSnapshots.remove(handle.id)
+                        progressLedger?.clear()
                         lastProgress.remove(handle.id)
+                        resumeValidators.remove(handle.id)
                         delay(delayMs)
                         delayMs = (delayMs * policy.backoffMultiplier).toLong().coerceAtLeast(1_000L)
                         attempt++
                     }
                 } catch (error: IOException) {
+                    checkNotStopped()
                     // Network error: keep file and resume from last position
                     if (attempt >= policy.maxAttempts) {
                         listeners.forEach { it.onFailed(handle, error) }
@@ -382,7 +731,7 @@ class MobileDownloadManager private constructor(
                     } else {
                         listeners.forEach { it.onRetry(handle, attempt) }
                         // Resume from last position for network errors
-                        plannedChunkStates = currentChunkStates(handle.id)
+                        plannedChunkStates = progressLedger?.snapshot() ?: emptyList()
                         // Update startOffset based on current progress
                         val lastProgressBytes = lastProgress[handle.id] ?: 0L
                         currentStartOffset = if (lastProgressBytes > 0) lastProgressBytes else currentStartOffset
@@ -391,30 +740,43 @@ class MobileDownloadManager private constructor(
                         attempt++
                     }
                 } catch (cancel: CancellationException) {
-                    val paused = pausedStates.containsKey(handle.id)
-                    if (!paused) {
-                        listeners.forEach { it.onCancelled(handle) }
-                    }
-                    shouldFinalize = !paused
-                    return
+                    throw cancel
                 } catch (error: Throwable) {
+                    checkNotStopped()
                     listeners.forEach { it.onFailed(handle, error) }
                     pendingDestinations.remove(handle.id)
                     return
                 }
             }
+        } catch (cancel: CancellationException) {
+            // Also reached when the job is cancelled during a retry delay.
+            val paused = pausedStates.containsKey(handle.id) || preemptedStates.containsKey(handle.id)
+            if (!paused) {
+                listeners.forEach { it.onCancelled(handle) }
+            }
+            shouldFinalize = !paused
         } finally {
             if (shouldFinalize) {
-                markDownloadFinished()
+                bandwidthLimiter.forget(handle.id)
+                markDownloadFinished(handle)
             }
         }
     }
 
-    private fun markDownloadFinished() {
+    /**
+     * 11.3 Tears the notification down once [handle]'s final events reached the notification
+     *      listener; a frame recorded after the stop would start the foreground service again.
+     */
+    private fun markDownloadFinished(handle: DownloadHandle) {
         val remaining = activeDownloads.decrementAndGet().coerceAtLeast(0)
         if (remaining <= 0) {
-            DownloadNotificationRegistry.helper?.cancel()
-            DownloadForegroundService.stopService(appContext)
+            listenerDispatcher.afterDelivered(handle) {
+                // A download may have started while the events drained.
+                if (activeDownloads.get() <= 0) {
+                    DownloadNotificationRegistry.helper?.cancel()
+                    DownloadForegroundService.stopService(appContext)
+                }
+            }
         }
     }
 
@@ -449,11 +811,24 @@ private data class DownloadSession(
     val callTracker: CallTracker = CallTracker()
 )
 
+/**
+ * What a queued download needs to start, whether it is new or resumed.
+ */
+private class PendingStart(
+    val request: DownloadRequest,
+    val handle: DownloadHandle,
+    val resolution: StorageResolution,
+    val startOffset: Long,
+    val chunkStates: List<ChunkStateData>,
+    val afterPreemption: Boolean = false
+)
+
 private data class PausedState(
     val request: DownloadRequest,
     val resolution: StorageResolution,
     val completedBytes: Long,
-    val chunkStates: List<ChunkStateData>
+    val chunkStates: List<ChunkStateData>,
+    val validator: String? = null
 )
 
 internal class CallTracker {
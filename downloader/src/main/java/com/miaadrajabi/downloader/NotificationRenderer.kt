@@ -0,0 +1,218 @@
+package com.miaadrajabi.downloader
+
+import android.app.Notification
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import androidx.core.app.NotificationCompat
+
+/**
+ * 1. What one download's notification should show. [detail] (speed, remaining bytes) and the
+ *    byte counters ride along with other changes but never cause a post on their own.
+ */
+internal data class NotificationContent(
+    val title: String,
+    val text: String,
+    val detail: String? = null,
+    val percent: Int? = null,
+    val indeterminate: Boolean = false,
+    val ongoing: Boolean,
+    val actions: NotificationActions = NotificationActions.NONE,
+    val phase: NotificationPhase = NotificationPhase.ACTIVE,
+    val bytesDownloaded: Long = 0L,
+    val totalBytes: Long? = null,
+    val bytesPerSecond: Long? = null
+) {
+    fun displayKey(): NotificationContent =
+        copy(detail = null, bytesDownloaded = 0L, totalBytes = null, bytesPerSecond = null)
+}
+
+internal enum class NotificationActions {
+    NONE,
+    PAUSE_STOP,
+    RESUME_STOP
+}
+
+internal enum class NotificationPhase {
+    QUEUED,
+    ACTIVE,
+    PAUSED,
+    FINISHED
+}
+
+/**
+ * 2. Where frames end up; implemented by [DownloadNotificationHelper].
+ */
+internal interface NotificationSurface {
+    fun newBuilder(): NotificationCompat.Builder
+
+    /**
+     * Writes [content] into a reused builder, replacing everything a previous frame set.
+     * [handle] is null for the summary notification.
+     */
+    fun compose(builder: NotificationCompat.Builder, handle: DownloadHandle?, content: NotificationContent)
+
+    fun summarize(contents: List<NotificationContent>): NotificationContent
+
+    /**
+     * Shows the foreground notification. A [finished] frame (nothing left running) must not
+     * start the foreground service when it is no longer running.
+     */
+    fun publishForeground(notification: Notification, finished: Boolean)
+
+    fun publishChild(id: Int, notification: Notification)
+
+    fun cancelChild(id: Int)
+}
+
+/**
+ * 3. Collects the latest [NotificationContent] of every handle and renders at most
+ *    [maxUpdatesPerSecond] frames per second on the main thread. A notification whose displayed
+ *    content did not change since its last post is skipped, and builders are reused.
+ * 4. By default the foreground notification shows the most recently updated handle. With
+ *    [aggregate] it shows a summary of all handles instead, and with [showChildren] every
+ *    handle also gets its own notification in the summary's group; both are updated in the
+ *    same frame.
+ */
+internal class NotificationRenderer(
+    maxUpdatesPerSecond: Int,
+    private val surface: NotificationSurface,
+    private val aggregate: Boolean = false,
+    private val showChildren: Boolean = true,
+    private val handler: Handler = Handler(Looper.getMainLooper())
+) {
+    private val frameIntervalMs = 1000L / maxUpdatesPerSecond.coerceIn(1, MAX_UPDATES_PER_SECOND)
+    private val entries = LinkedHashMap<String, Entry>()
+    private val removed = LinkedHashSet<String>()
+    private var framePending = false
+    private var lastFrameAt = 0L
+    private val frame = Runnable { renderFrame() }
+
+    // Display state, only touched under the renderer lock.
+    private var foregroundBuilder: NotificationCompat.Builder? = null
+    private var shownHandleId: String? = null
+    private var shownKey: NotificationContent? = null
+    private val children = HashMap<String, Child>()
+    private var nextChildId = DownloadNotificationHelper.FOREGROUND_NOTIFICATION_ID + 1
+
+    /**
+     * 5. Records the new content for [handle] and schedules a frame if none is pending. Status
+     *    updates without byte counts keep the last known ones, so the summary stays accurate.
+     */
+    @Synchronized
+    fun update(handle: DownloadHandle, content: NotificationContent) {
+        val previous = entries.remove(handle.id)?.content
+        val merged = if (previous != null && content.bytesDownloaded == 0L && content.totalBytes == null) {
+            content.copy(bytesDownloaded = previous.bytesDownloaded, totalBytes = previous.totalBytes)
+        } else {
+            content
+        }
+        // Re-insert so iteration order tracks the most recent update.
+        entries[handle.id] = Entry(handle, merged)
+        removed -= handle.id
+        scheduleFrame()
+    }
+
+    /**
+     * 6. Drops [handleId] from the summary and removes its child notification on the next frame.
+     */
+    @Synchronized
+    fun remove(handleId: String) {
+        entries.remove(handleId)
+        removed += handleId
+        scheduleFrame()
+    }
+
+    /**
+     * 7. Forgets everything and drops a pending frame, e.g. when the notification is cancelled.
+     */
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        removed.clear()
+        handler.removeCallbacks(frame)
+        framePending = false
+        shownHandleId = null
+        shownKey = null
+        children.values.forEach { surface.cancelChild(it.id) }
+        children.clear()
+    }
+
+    private fun scheduleFrame() {
+        if (framePending) return
+        framePending = true
+        val wait = (lastFrameAt + frameIntervalMs - SystemClock.uptimeMillis()).coerceAtLeast(0L)
+        handler.postDelayed(frame, wait)
+    }
+
+    @Synchronized
+    private fun renderFrame() {
+        framePending = false
+        // A frame that was already running when clear() dropped everything.
+        if (entries.isEmpty() && removed.isEmpty()) return
+        lastFrameAt = SystemClock.uptimeMillis()
+        if (aggregate) renderAggregate() else renderLatest()
+    }
+
+    private fun renderLatest() {
+        val latest = entries.values.lastOrNull() ?: return
+        // A finished download is shown once and then gives way to the ones still running.
+        if (!latest.content.ongoing) entries.remove(latest.handle.id)
+        val key = latest.content.displayKey()
+        if (latest.handle.id == shownHandleId && key == shownKey) return
+        shownHandleId = latest.handle.id
+        shownKey = key
+        val builder = foregroundBuilder ?: surface.newBuilder().also { foregroundBuilder = it }
+        surface.compose(builder, latest.handle, latest.content)
+        surface.publishForeground(builder.build(), latest.content.phase == NotificationPhase.FINISHED)
+    }
+
+    private fun renderAggregate() {
+        val snapshot = entries.values.toList()
+        if (showChildren) {
+            removed.forEach { handleId -> children.remove(handleId)?.let { surface.cancelChild(it.id) } }
+            snapshot.forEach { renderChild(it) }
+        }
+        removed.clear()
+        val summary = surface.summarize(snapshot.map { it.content })
+        // Finished downloads count toward this frame only.
+        entries.values.removeAll { !it.content.ongoing }
+        val key = summary.displayKey()
+        if (key == shownKey) return
+        shownKey = key
+        val builder = foregroundBuilder ?: surface.newBuilder()
+            .setGroup(GROUP_KEY)
+            .setGroupSummary(true)
+            .also { foregroundBuilder = it }
+        surface.compose(builder, null, summary)
+        surface.publishForeground(builder.build(), summary.phase == NotificationPhase.FINISHED)
+    }
+
+    private fun renderChild(entry: Entry) {
+        val child = children.getOrPut(entry.handle.id) {
+            Child(
+                id = nextChildId++,
+                builder = surface.newBuilder()
+                    .setGroup(GROUP_KEY)
+                    .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY)
+            )
+        }
+        val key = entry.content.displayKey()
+        if (key == child.shownKey) return
+        child.shownKey = key
+        surface.compose(child.builder, entry.handle, entry.content)
+        surface.publishChild(child.id, child.builder.build())
+    }
+
+    private class Entry(val handle: DownloadHandle, val content: NotificationContent)
+
+    private class Child(val id: Int, val builder: NotificationCompat.Builder) {
+        var shownKey: NotificationContent? = null
+    }
+
+    private companion object {
+        // Android drops notification updates above roughly this rate anyway.
+        const val MAX_UPDATES_PER_SECOND = 10
+        const val GROUP_KEY = "com.miaadrajabi.downloader.DOWNLOADS"
+    }
+}
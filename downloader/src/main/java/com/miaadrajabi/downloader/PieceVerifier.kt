@@ -0,0 +1,153 @@
+package com.miaadrajabi.downloader
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.Locale
+import kotlin.math.min
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.yield
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * 1. Checks a download piece by piece against a [PieceManifest]. [follow] verifies each piece as
+ *    soon as the chunks covering it have written it, so by the end of the transfer usually only
+ *    the last pieces are left; [finish] checks those and names the pieces that need a repair.
+ */
+internal class PieceVerifier(
+    private val manifest: PieceManifest,
+    private val totalBytes: Long,
+    private val channel: FileChannel,
+    private val buffer: ByteBuffer
+) {
+    private val digest = MessageDigest.getInstance(manifest.algorithm.name)
+    private val expected = manifest.pieceHashes.map { it.trim().toLowerCase(Locale.US) }
+    // Per piece: UNCHECKED, GOOD or BAD.
+    private val states = ByteArray(expected.size)
+
+    /**
+     * 2. Verifies pieces while the transfer runs, until cancelled.
+     */
+    suspend fun follow(ledger: ChunkProgressLedger, intervalMillis: Long = POLL_INTERVAL_MS) {
+        while (true) {
+            delay(intervalMillis)
+            val written = writtenRanges(ledger)
+            for (piece in states.indices) {
+                if (states[piece] != UNCHECKED) continue
+                val start = piece * manifest.pieceSize
+                val end = pieceEnd(piece)
+                if (written.any { it.first <= start && end <= it.second }) {
+                    verify(piece)
+                    yield()
+                }
+            }
+        }
+    }
+
+    /**
+     * 3. Verifies every piece not checked yet and returns the indexes of the bad ones. Call
+     *    once the whole file is written.
+     */
+    fun finish(): List<Int> {
+        states.indices.filter { states[it] == UNCHECKED }.forEach { verify(it) }
+        return states.indices.filter { states[it] == BAD }
+    }
+
+    /**
+     * 4. Verifies [pieces] again after they were re-downloaded; returns those still bad.
+     */
+    fun recheck(pieces: List<Int>): List<Int> = pieces.filterNot { verify(it) }
+
+    fun rangeOf(piece: Int): LongRange = piece * manifest.pieceSize until pieceEnd(piece)
+
+    @Synchronized
+    private fun verify(piece: Int): Boolean {
+        digest.reset()
+        var position = piece * manifest.pieceSize
+        val end = pieceEnd(piece)
+        while (position < end) {
+            buffer.clear()
+            buffer.limit(min(buffer.capacity().toLong(), end - position).toInt())
+            val read = channel.read(buffer, position)
+            if (read <= 0) break
+            buffer.flip()
+            digest.update(buffer)
+            position += read
+        }
+        val good = position == end && FileIntegrityVerifier.toHex(digest.digest()) == expected[piece]
+        states[piece] = if (good) GOOD else BAD
+        return good
+    }
+
+    private fun pieceEnd(piece: Int): Long = min(totalBytes, (piece + 1) * manifest.pieceSize)
+
+    /**
+     * 5. Written byte ranges as merged [start, end) pairs, from each chunk's start to its next
+     *    offset.
+     */
+    private fun writtenRanges(ledger: ChunkProgressLedger): List<Pair<Long, Long>> {
+        val merged = ArrayList<Pair<Long, Long>>()
+        for (state in ledger.snapshot().sortedBy { it.start }) {
+            if (state.nextOffset <= state.start) continue
+            val last = merged.lastOrNull()
+            if (last != null && state.start <= last.second) {
+                merged[merged.lastIndex] = last.first to maxOf(last.second, state.nextOffset)
+            } else {
+                merged += state.start to state.nextOffset
+            }
+        }
+        return merged
+    }
+
+    companion object {
+        const val BUFFER_BYTES = 256 * 1024
+        private const val POLL_INTERVAL_MS = 500L
+        private const val UNCHECKED: Byte = 0
+        private const val GOOD: Byte = 1
+        private const val BAD: Byte = 2
+
+        /**
+         * 6. Whether [manifest] describes a file of [totalBytes]; a mismatched manifest is
+         *    ignored rather than failing every piece.
+         */
+        fun matches(manifest: PieceManifest, totalBytes: Long): Boolean {
+            if (manifest.pieceSize <= 0L || totalBytes <= 0L) return false
+            val pieces = (totalBytes + manifest.pieceSize - 1) / manifest.pieceSize
+            return manifest.pieceHashes.size.toLong() == pieces
+        }
+
+        /**
+         * 7. Parses a manifest fetched from [PieceManifest.manifestUrl]; fields missing from the
+         *    JSON keep the values of [declared].
+         */
+        fun parse(json: String, declared: PieceManifest): PieceManifest {
+            val obj = JSONObject(json)
+            val pieces = obj.getJSONArray("pieces")
+            return declared.copy(
+                pieceSize = obj.optLong("pieceSize", declared.pieceSize),
+                algorithm = obj.optString("algorithm").takeIf { it.isNotEmpty() }
+                    ?.let { ChecksumAlgorithm.valueOf(it) } ?: declared.algorithm,
+                pieceHashes = (0 until pieces.length()).map { pieces.getString(it) }
+            )
+        }
+
+        /**
+         * 8. Stored form of a request's manifest, in the same layout as a fetched one plus the URL.
+         */
+        fun toJson(manifest: PieceManifest, includeHashes: Boolean = true): JSONObject = JSONObject().apply {
+            put("pieceSize", manifest.pieceSize)
+            put("algorithm", manifest.algorithm.name)
+            put("pieces", JSONArray(if (includeHashes) manifest.pieceHashes else emptyList()))
+            put("manifestUrl", manifest.manifestUrl ?: JSONObject.NULL)
+        }
+
+        fun fromJson(obj: JSONObject): PieceManifest = parse(
+            obj.toString(),
+            PieceManifest(
+                pieceSize = obj.getLong("pieceSize"),
+                manifestUrl = if (obj.isNull("manifestUrl")) null else obj.optString("manifestUrl")
+            )
+        )
+    }
+}
@@ -0,0 +1,155 @@
+package com.miaadrajabi.downloader
+
+import android.util.Log
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.max
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * 1. Byte counter of one running transfer. Chunk workers only bump a per-chunk stripe (a
+ *    hand-rolled LongAdder, which needs API 24); speed, ETA and listener calls are left to
+ *    [ProgressTicker].
+ */
+internal class ProgressTracker(
+    private val listeners: List<DownloadListener>,
+    private val handle: DownloadHandle,
+    totalBytes: Long?,
+    startOffset: Long
+) {
+    private val baseBytes = startOffset.coerceAtLeast(0L)
+    // Stripes sit a cache line apart so concurrent chunks do not contend on one counter.
+    private val stripes = AtomicLongArray(STRIPES * STRIPE_PADDING)
+    @Volatile private var totalBytesSnapshot: Long? = totalBytes
+    @Volatile private var lastChunkIndex: Int? = null
+    @Volatile var parallelism: Int? = null
+
+    // Sampling state, only touched under the tracker lock by the ticker or the final sample.
+    private var lastSampleAt = System.currentTimeMillis()
+    private var lastSampleBytes = baseBytes
+    private var smoothedSpeed = 0.0
+
+    fun onBytes(chunkIndex: Int, delta: Long) {
+        stripes.getAndAdd((chunkIndex and (STRIPES - 1)) * STRIPE_PADDING, delta)
+        if (lastChunkIndex != chunkIndex) lastChunkIndex = chunkIndex
+    }
+
+    fun downloadedBytes(): Long {
+        var sum = baseBytes
+        for (stripe in 0 until STRIPES) {
+            sum += stripes.get(stripe * STRIPE_PADDING)
+        }
+        return sum
+    }
+
+    fun updateTotalIfAbsent(value: Long?) {
+        if (value == null || value <= 0) return
+        val current = totalBytesSnapshot
+        if (current == null || current <= 0) {
+            synchronized(this) {
+                val inner = totalBytesSnapshot
+                if (inner == null || inner <= 0) {
+                    totalBytesSnapshot = value
+                }
+            }
+        }
+    }
+
+    /**
+     * 2. Computes speed and ETA since the previous sample and notifies listeners if anything
+     *    moved. [force] emits even without new bytes (used for the final sample).
+     */
+    @Synchronized
+    fun sample(now: Long, force: Boolean = false) {
+        val bytes = downloadedBytes()
+        val delta = bytes - lastSampleBytes
+        if (delta <= 0 && !force) return
+        val elapsedMs = (now - lastSampleAt).coerceAtLeast(1L)
+        if (delta > 0) {
+            val rawSpeed = delta * 1000.0 / elapsedMs
+            smoothedSpeed = if (smoothedSpeed <= 0.0) rawSpeed else SMOOTHING_ALPHA * rawSpeed + (1 - SMOOTHING_ALPHA) * smoothedSpeed
+        }
+        lastSampleBytes = bytes
+        lastSampleAt = now
+
+        val totalBytes = totalBytesSnapshot
+        val remaining = totalBytes?.let { max(0L, it - bytes) }
+        val percent = totalBytes?.takeIf { it > 0L }?.let { ((bytes * 100) / it).toInt().coerceIn(0, 100) }
+        val speed = smoothedSpeed.toLong().takeIf { it > 0 }
+        val progress = DownloadProgress(
+            bytesDownloaded = bytes,
+            totalBytes = totalBytes,
+            chunkIndex = lastChunkIndex,
+            bytesPerSecond = speed,
+            remainingBytes = remaining,
+            percent = percent,
+            parallelism = parallelism,
+            etaMillis = if (remaining != null && speed != null) remaining * 1000 / speed else null
+        )
+        listeners.forEach { it.onProgress(handle, progress) }
+    }
+
+    private companion object {
+        private const val SMOOTHING_ALPHA = 0.3
+        private const val STRIPES = 8
+        private const val STRIPE_PADDING = 8
+    }
+}
+
+/**
+ * 3. One coroutine per manager that samples every active [ProgressTracker] at a fixed cadence,
+ *    so each UI sees the same rate no matter how many chunks or downloads are running. It
+ *    stops when nothing is registered and restarts on the next registration.
+ */
+internal class ProgressTicker(
+    private val scope: CoroutineScope,
+    private val intervalMillis: Long = DEFAULT_INTERVAL_MS
+) {
+    private val trackers = LinkedHashSet<ProgressTracker>()
+    private var job: Job? = null
+
+    @Synchronized
+    fun register(tracker: ProgressTracker) {
+        trackers += tracker
+        if (job == null) {
+            job = scope.launch { tick() }
+        }
+    }
+
+    /**
+     * 4. Stops sampling [tracker] after one last forced sample, so listeners always see the
+     *    final byte count.
+     */
+    fun unregister(tracker: ProgressTracker) {
+        synchronized(this) { trackers -= tracker }
+        tracker.sample(System.currentTimeMillis(), force = true)
+    }
+
+    private suspend fun tick() {
+        while (true) {
+            delay(intervalMillis)
+            val active = synchronized(this) {
+                if (trackers.isEmpty()) {
+                    job = null
+                    return
+                }
+                trackers.toList()
+            }
+            val now = System.currentTimeMillis()
+            active.forEach { tracker ->
+                try {
+                    tracker.sample(now)
+                } catch (error: Exception) {
+                    Log.w(TAG, "Progress listener failed", error)
+                }
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_INTERVAL_MS = 200L
+        private const val TAG = "ProgressTicker"
+    }
+}
@@ -15,7 +15,7 @@ class ScheduledDownloadWorker(
 ) : CoroutineWorker(appContext, workerParams) {
 
     override suspend fun doWork(): Result = withContext(Dispatchers.IO) {
-        val request = DownloadRequestAdapter.fromData(inputData) ?: return@withContext Result.failure()
+        val request = DownloadRequestAdapter.fromData(applicationContext, inputData) ?: return@withContext Result.failure()
         val config = DownloadConfigStore.load(applicationContext) ?: DownloadConfig()
         val manager = MobileDownloadManager.create(applicationContext, config)
         manager.enqueue(request)
@@ -2,7 +2,11 @@ package com.miaadrajabi.downloader
 
 import android.content.Context
 import android.os.StatFs
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
 import java.io.File
+import java.io.RandomAccessFile
 import android.os.Environment
 
 /**
@@ -61,6 +65,47 @@ class StorageResolver(
         )
     }
 
+    /**
+     * 4. Reserves the full content length for [resolution] once it is known, so chunks written at
+     *    scattered offsets land in contiguous, already-allocated blocks and a download that cannot
+     *    fit fails before any byte is transferred. Bytes already on disk (resume) are not counted twice.
+     */
+    fun preallocate(resolution: StorageResolution, totalBytes: Long) {
+        val file = resolution.file
+        val existing = file.length()
+        if (totalBytes <= 0L) return
+        if (existing > totalBytes) {
+            // Left over from an attempt that planned with a stale, larger size.
+            RandomAccessFile(file, "rw").use { it.setLength(totalBytes) }
+            return
+        }
+        if (existing == totalBytes) return
+        val required = totalBytes - existing
+        val availableBytes = StatFs(resolution.directory.absolutePath).availableBytes
+        val reserve = if (storageConfig.validateFreeSpace) storageConfig.minFreeSpaceBytes else 0L
+        if (availableBytes - required < reserve) {
+            throw insufficientSpace(file, required + reserve, availableBytes)
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            try {
+                Os.posix_fallocate(raf.fd, existing, required)
+            } catch (error: ErrnoException) {
+                if (error.errno == OsConstants.ENOSPC) {
+                    throw insufficientSpace(file, required, availableBytes)
+                }
+                // Filesystem without fallocate support: extend the file instead.
+                raf.setLength(totalBytes)
+            }
+        }
+    }
+
+    private fun insufficientSpace(file: File, requiredBytes: Long, availableBytes: Long) =
+        StorageResolutionException(
+            "Insufficient free space for ${file.name}. Requires $requiredBytes bytes but found $availableBytes bytes.",
+            requiredBytes = requiredBytes,
+            availableBytes = availableBytes
+        )
+
     private fun toCandidateDirectories(destinations: List<DownloadDestination>): List<File> {
         if (destinations.isEmpty()) return defaultLocations
         return destinations.flatMap { destination ->
@@ -109,7 +154,11 @@ class StorageResolver(
 }
 
 /**
- * 4. Dedicated exception for storage-specific failures.
+ * 5. Dedicated exception for storage-specific failures. Space failures carry the byte counts.
  */
-class StorageResolutionException(message: String) : IllegalStateException(message)
+class StorageResolutionException(
+    message: String,
+    val requiredBytes: Long? = null,
+    val availableBytes: Long? = null
+) : IllegalStateException(message)
 
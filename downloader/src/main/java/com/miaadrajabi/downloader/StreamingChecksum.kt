@@ -0,0 +1,70 @@
+package com.miaadrajabi.downloader
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import kotlin.math.min
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.yield
+
+/**
+ * 1. Hashes a download while it is being written, so [FileIntegrityVerifier] gets the digest at
+ *    completion instead of reading the finished file again. Only the contiguous prefix from
+ *    offset 0 can be fed to a digest; [follow] polls [ChunkProgressLedger.contiguousPrefix] and
+ *    hashes each newly completed stretch while it is still in the page cache.
+ * 2. Platform [MessageDigest] state cannot be exported, so nothing is persisted on pause: after
+ *    a resume the already written prefix is hashed again, in the background while the rest of
+ *    the file downloads.
+ */
+internal class StreamingChecksum(
+    algorithm: ChecksumAlgorithm,
+    private val channel: FileChannel,
+    private val buffer: ByteBuffer
+) {
+    private val digest = MessageDigest.getInstance(algorithm.name)
+    @Volatile private var hashedUpTo = 0L
+
+    /**
+     * 3. Follows [ledger] until cancelled. Works in bounded steps so a pause is not held up by a
+     *    long catch-up after resume.
+     */
+    suspend fun follow(ledger: ChunkProgressLedger, intervalMillis: Long = POLL_INTERVAL_MS) {
+        while (true) {
+            val prefix = ledger.contiguousPrefix()
+            if (prefix > hashedUpTo) {
+                catchUp(min(prefix, hashedUpTo + STEP_BYTES))
+                yield()
+            } else {
+                delay(intervalMillis)
+            }
+        }
+    }
+
+    /**
+     * 4. Hashes whatever is missing up to [length] and returns the hex digest. Called once the
+     *    transfer succeeded, with [follow] stopped.
+     */
+    fun finish(length: Long): String {
+        catchUp(length)
+        return FileIntegrityVerifier.toHex(digest.digest())
+    }
+
+    @Synchronized
+    private fun catchUp(prefix: Long) {
+        while (hashedUpTo < prefix) {
+            buffer.clear()
+            buffer.limit(min(buffer.capacity().toLong(), prefix - hashedUpTo).toInt())
+            val read = channel.read(buffer, hashedUpTo)
+            if (read <= 0) break
+            buffer.flip()
+            digest.update(buffer)
+            hashedUpTo += read
+        }
+    }
+
+    companion object {
+        const val BUFFER_BYTES = 256 * 1024
+        private const val POLL_INTERVAL_MS = 250L
+        private const val STEP_BYTES = 8L * 1024 * 1024
+    }
+}
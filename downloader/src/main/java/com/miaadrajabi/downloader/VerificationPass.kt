@@ -0,0 +1,106 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.Locale
+
+/**
+ * 1. Reads a finished file once, front to back in large blocks, and hands every block to each
+ *    [Check]. Several digests and structural checks then cost one read of the file instead of
+ *    one read each.
+ */
+internal class VerificationPass(private val bufferBytes: Int = DEFAULT_BUFFER_BYTES) {
+
+    /**
+     * 2. One check fed by the pass. [update] sees the block between the buffer's position and
+     *    limit, starting at file offset [offset]; it may move the position, which is reset for
+     *    the next check. [finish] returns an error message, or null when the check passed.
+     */
+    interface Check {
+        fun update(block: ByteBuffer, offset: Long)
+
+        fun finish(size: Long): String?
+    }
+
+    /**
+     * 3. Runs [checks] over [file] and returns the error of each failed one. A read failure fails
+     *    every check.
+     */
+    fun run(file: File, checks: List<Check>): Map<Check, String> {
+        if (checks.isEmpty()) return emptyMap()
+        val size = try {
+            RandomAccessFile(file, "r").use { raf ->
+                val channel = raf.channel
+                val buffer = ByteBuffer.allocate(bufferBytes)
+                var offset = 0L
+                while (true) {
+                    buffer.clear()
+                    val read = channel.read(buffer, offset)
+                    if (read < 0) break
+                    buffer.flip()
+                    for (check in checks) {
+                        buffer.position(0)
+                        check.update(buffer, offset)
+                    }
+                    offset += read
+                }
+                offset
+            }
+        } catch (error: IOException) {
+            return checks.associateWith { "Unable to read ${file.name}: ${error.message}" }
+        }
+        val errors = LinkedHashMap<Check, String>()
+        checks.forEach { check -> check.finish(size)?.let { errors[check] = it } }
+        return errors
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_BYTES = 1 shl 20
+    }
+}
+
+/**
+ * 4. Compares the file's [algorithm] digest with [expected].
+ */
+internal class DigestCheck(
+    val algorithm: ChecksumAlgorithm,
+    private val expected: String
+) : VerificationPass.Check {
+    private val digest = MessageDigest.getInstance(algorithm.name)
+
+    var actual: String? = null
+        private set
+
+    override fun update(block: ByteBuffer, offset: Long) {
+        digest.update(block)
+    }
+
+    override fun finish(size: Long): String? {
+        val hex = FileIntegrityVerifier.toHex(digest.digest())
+        actual = hex
+        return if (hex == expected.trim().toLowerCase(Locale.US)) null else "Checksum mismatch (${algorithm.name})"
+    }
+}
+
+/**
+ * 5. Checks that the file starts with the ZIP local header signature ("PK").
+ */
+internal class ZipMagicCheck : VerificationPass.Check {
+    private val magic = ByteArray(2)
+    private var seen = 0
+
+    override fun update(block: ByteBuffer, offset: Long) {
+        while (seen < magic.size && offset + block.position() == seen.toLong() && block.hasRemaining()) {
+            magic[seen++] = block.get()
+        }
+    }
+
+    override fun finish(size: Long): String? = when {
+        seen < magic.size -> "APK file too short to read magic number"
+        magic[0] != 'P'.toByte() || magic[1] != 'K'.toByte() -> "APK magic number mismatch"
+        else -> null
+    }
+}
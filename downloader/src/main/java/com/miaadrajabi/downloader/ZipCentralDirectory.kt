@@ -0,0 +1,186 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.zip.ZipException
+import kotlin.math.min
+import kotlinx.coroutines.delay
+
+/**
+ * 1. Central directory of a ZIP (APK) as described by its End-of-Central-Directory record.
+ *    [locate] reads only the tail of the file, so an APK can be checked without opening a
+ *    [java.util.zip.ZipFile], and before the front of the file has even been downloaded.
+ */
+internal class ZipCentralDirectory private constructor(
+    val offset: Long,
+    val size: Long,
+    val entries: Int
+) {
+
+    /**
+     * 2. Walks every central directory record and reports whether [name] is among them. Names
+     *    are compared as bytes in the read buffer, so nothing is allocated per entry. Records
+     *    are in archive order, not sorted, so the walk is linear; it also proves the directory
+     *    is well formed: [entries] records, each with its signature, filling exactly [size]
+     *    bytes and pointing below [offset].
+     */
+    fun contains(channel: FileChannel, name: String): Boolean {
+        val wanted = name.toByteArray(Charsets.UTF_8)
+        val reader = Reader(channel, offset, offset + size)
+        var found = false
+        repeat(entries) {
+            val buffer = reader.require(CENTRAL_HEADER_BYTES)
+            val start = buffer.position()
+            if (buffer.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+                throw ZipException("Bad central directory record at ${reader.offsetOf(start)}")
+            }
+            val nameLength = buffer.getShort(start + 28).toInt() and 0xffff
+            val recordLength = CENTRAL_HEADER_BYTES + nameLength +
+                (buffer.getShort(start + 30).toInt() and 0xffff) +
+                (buffer.getShort(start + 32).toInt() and 0xffff)
+            val localHeader = buffer.getInt(start + 42).toLong() and 0xffffffffL
+            if (localHeader >= offset) throw ZipException("Entry offset $localHeader past the central directory")
+            reader.require(recordLength)
+            val record = buffer.position()
+            if (!found && nameLength == wanted.size) {
+                found = wanted.indices.all { buffer.get(record + CENTRAL_HEADER_BYTES + it) == wanted[it] }
+            }
+            buffer.position(record + recordLength)
+        }
+        if (reader.consumed() != size) throw ZipException("Central directory has ${size - reader.consumed()} stray bytes")
+        return found
+    }
+
+    /**
+     * 3. Sliding window over the central directory, refilled from [channel] as records are read.
+     */
+    private class Reader(private val channel: FileChannel, private val start: Long, private val end: Long) {
+        private val buffer = ByteBuffer.allocate(SCAN_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN).apply { limit(0) }
+        private var filePosition = start
+
+        fun require(bytes: Int): ByteBuffer {
+            if (buffer.remaining() >= bytes) return buffer
+            buffer.compact()
+            buffer.limit(min(buffer.capacity().toLong(), buffer.position() + end - filePosition).toInt())
+            while (buffer.hasRemaining()) {
+                val read = channel.read(buffer, filePosition)
+                if (read <= 0) break
+                filePosition += read
+            }
+            buffer.flip()
+            if (buffer.remaining() < bytes) throw ZipException("Central directory truncated")
+            return buffer
+        }
+
+        fun offsetOf(index: Int): Long = filePosition - buffer.limit() + index
+
+        fun consumed(): Long = filePosition - buffer.remaining() - start
+    }
+
+    companion object {
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val EOCD_BYTES = 22
+        private const val CENTRAL_HEADER_BYTES = 46
+        private const val MAX_COMMENT_BYTES = 0xffff
+        // Larger than any single record (46 bytes plus three 16-bit lengths).
+        private const val SCAN_BUFFER_BYTES = 256 * 1024
+
+        /**
+         * 4. Bytes at the end of a [length]-byte file that can hold the EOCD record.
+         */
+        fun tailBytes(length: Long): Long = min(length, (EOCD_BYTES + MAX_COMMENT_BYTES).toLong())
+
+        /**
+         * 5. Finds the EOCD record in the last [tailBytes] of the file and checks it against
+         *    [length]: a single disk, and a central directory that ends right where the EOCD
+         *    starts. Returns null for ZIP64 archives, which keep the real values elsewhere;
+         *    throws [ZipException] when there is no usable EOCD.
+         */
+        fun locate(channel: FileChannel, length: Long): ZipCentralDirectory? {
+            if (length < EOCD_BYTES) throw ZipException("File too short for a ZIP archive")
+            val tail = ByteBuffer.allocate(tailBytes(length).toInt()).order(ByteOrder.LITTLE_ENDIAN)
+            val tailStart = length - tail.capacity()
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, tailStart + tail.position()) <= 0) throw ZipException("Unable to read ZIP tail")
+            }
+            // The comment is the only variable part after the record, so scan backwards.
+            var record = tail.capacity() - EOCD_BYTES
+            while (record >= 0) {
+                if (tail.getInt(record) == EOCD_SIGNATURE &&
+                    record + EOCD_BYTES + (tail.getShort(record + 20).toInt() and 0xffff) == tail.capacity()
+                ) {
+                    break
+                }
+                record--
+            }
+            if (record < 0) throw ZipException("End of central directory not found")
+            val disk = tail.getShort(record + 4).toInt() and 0xffff
+            val directoryDisk = tail.getShort(record + 6).toInt() and 0xffff
+            val entriesOnDisk = tail.getShort(record + 8).toInt() and 0xffff
+            val entries = tail.getShort(record + 10).toInt() and 0xffff
+            val size = tail.getInt(record + 12).toLong() and 0xffffffffL
+            val offset = tail.getInt(record + 16).toLong() and 0xffffffffL
+            if (entries == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) return null
+            val eocdOffset = tailStart + record
+            return when {
+                disk != 0 || directoryDisk != 0 || entriesOnDisk != entries ->
+                    throw ZipException("Multi-disk ZIP archives are not APKs")
+                entries == 0 -> throw ZipException("ZIP archive has no entries")
+                offset + size != eocdOffset ->
+                    throw ZipException("Central directory [$offset, ${offset + size}) does not end at EOCD $eocdOffset")
+                else -> ZipCentralDirectory(offset, size, entries)
+            }
+        }
+    }
+}
+
+/**
+ * 6. Checks the tail of a downloading APK as soon as it is on disk. Chunks write the tail in
+ *    parallel with the front of the file, so a file without a sane central directory (an
+ *    error page, a truncated mirror copy) fails once its last chunk lands instead of after
+ *    the whole transfer.
+ */
+internal class ApkTailCheck(
+    private val file: File,
+    private val channel: FileChannel,
+    private val length: Long
+) {
+
+    /**
+     * 7. Follows [ledger] until the tail has been checked or the check failed, which throws
+     *    [IntegrityValidationException]. The EOCD is located once its bytes are written, the
+     *    central directory walked once it is written too.
+     */
+    suspend fun follow(ledger: ChunkProgressLedger, intervalMillis: Long = POLL_INTERVAL_MS) {
+        var directory: ZipCentralDirectory? = null
+        while (true) {
+            delay(intervalMillis)
+            val written = length - ledger.contiguousSuffix(length)
+            try {
+                if (directory == null) {
+                    if (written < ZipCentralDirectory.tailBytes(length)) continue
+                    directory = ZipCentralDirectory.locate(channel, length) ?: return
+                }
+                if (written < length - directory.offset) continue
+                // A missing manifest only warns at verification; here the walk proves the
+                // directory is well formed.
+                directory.contains(channel, APK_MANIFEST)
+                return
+            } catch (error: ZipException) {
+                throw IntegrityValidationException(
+                    "APK structure invalid: ${error.message}",
+                    listOf("APK structure validation failed"),
+                    file
+                )
+            }
+        }
+    }
+
+    companion object {
+        const val APK_MANIFEST = "AndroidManifest.xml"
+        private const val POLL_INTERVAL_MS = 500L
+    }
+}
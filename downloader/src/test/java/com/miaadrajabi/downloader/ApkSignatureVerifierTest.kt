@@ -0,0 +1,115 @@
+package com.miaadrajabi.downloader
+
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.GeneralSecurityException
+import java.security.SignatureException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Local unit tests for [ApkSignatureVerifier] against the fixtures in `resources/apk`: the same
+ * two-entry APK signed with a throwaway RSA key (v2, RSASSA-PKCS1 SHA-256) and a throwaway EC
+ * key (v3, ECDSA SHA-256, minSdk 28).
+ */
+class ApkSignatureVerifierTest {
+
+    private val files = mutableListOf<File>()
+
+    @After
+    fun tearDown() {
+        files.forEach { it.delete() }
+    }
+
+    private fun fixture(name: String): ByteArray =
+        javaClass.getResourceAsStream("/apk/$name")!!.use { it.readBytes() }
+
+    private fun write(bytes: ByteArray): File =
+        File.createTempFile("signature", ".apk").also { it.writeBytes(bytes); files += it }
+
+    private fun verify(bytes: ByteArray, platformSdk: Int = 30) =
+        runBlocking { ApkSignatureVerifier(parallelism = 2).verify(write(bytes), platformSdk) }
+
+    @Test
+    fun v2_verifiesAndReportsSigner() {
+        val result = verify(fixture("signed-v2.apk"))!!
+        assertEquals(2, result.scheme)
+        assertEquals(listOf(RSA_CERTIFICATE), result.certificateSha256)
+    }
+
+    @Test
+    fun v3_verifiesAndReportsSigner() {
+        val result = verify(fixture("signed-v3.apk"))!!
+        assertEquals(3, result.scheme)
+        assertEquals(listOf(EC_CERTIFICATE), result.certificateSha256)
+    }
+
+    @Test
+    fun v3_signerBelowItsMinSdkDoesNotApply() {
+        assertThrows(SignatureException::class.java) { verify(fixture("signed-v3.apk"), platformSdk = 27) }
+    }
+
+    @Test
+    fun tamperedEntry_failsContentDigest() {
+        listOf("signed-v2.apk", "signed-v3.apk").forEach { name ->
+            val bytes = fixture(name)
+            // In the ZIP entries, which the content digest covers.
+            assertTrue(signingBlockStart(bytes) > 200)
+            bytes[200] = (bytes[200] + 1).toByte()
+            val error = assertThrows(SignatureException::class.java) { verify(bytes) }
+            assertTrue(error.message, error.message!!.contains("digest"))
+        }
+    }
+
+    @Test
+    fun tamperedSigningBlock_failsSignature() {
+        val bytes = fixture("signed-v2.apk")
+        // The signer's certificate sits inside its signed data.
+        val certificateAt = bytes.indexOf(DER_SEQUENCE_PREFIX, from = signingBlockStart(bytes))
+        bytes[certificateAt + 40] = (bytes[certificateAt + 40] + 1).toByte()
+        assertThrows(GeneralSecurityException::class.java) { verify(bytes) }
+    }
+
+    @Test
+    fun pinnedCertificate_mustMatchASigner() {
+        val result = verify(fixture("signed-v2.apk"))!!
+        assertTrue(result.signedBy(RSA_CERTIFICATE))
+        assertTrue(result.signedBy(RSA_CERTIFICATE.toUpperCase().chunked(2).joinToString(":")))
+        assertFalse(result.signedBy(EC_CERTIFICATE))
+    }
+
+    @Test
+    fun unsignedZip_hasNoSignature() {
+        val out = ByteArrayOutputStream()
+        ZipOutputStream(out).use { zip ->
+            zip.putNextEntry(ZipEntry("AndroidManifest.xml"))
+            zip.write(ByteArray(64))
+            zip.closeEntry()
+        }
+        assertNull(verify(out.toByteArray()))
+    }
+
+    private fun signingBlockStart(bytes: ByteArray): Int {
+        val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        val directoryOffset = buffer.getInt(bytes.size - 22 + 16)
+        val blockSize = buffer.getLong(directoryOffset - 24)
+        return (directoryOffset - blockSize - 8).toInt()
+    }
+
+    private fun ByteArray.indexOf(pattern: ByteArray, from: Int): Int =
+        (from..size - pattern.size).first { start -> pattern.indices.all { this[start + it] == pattern[it] } }
+
+    private companion object {
+        const val RSA_CERTIFICATE = "04d2285457bb8de8d4600a5744e37b4f4a81eb6f5bfc55894b61f533a783011c"
+        const val EC_CERTIFICATE = "0ce02966531489d1090fab84865a59090c64bce2710e70c18ae5486f599b95e1"
+        // An X.509 certificate is a DER SEQUENCE with a two-byte length.
+        val DER_SEQUENCE_PREFIX = byteArrayOf(0x30, 0x82.toByte())
+    }
+}
@@ -0,0 +1,42 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.lang.management.ManagementFactory
+import org.junit.Assume
+
+/**
+ * Shared setup of the `*Benchmark` classes. They are skipped by a plain `test` run and only run
+ * with `-Pbenchmark`, e.g. `./gradlew :downloader:testDebugUnitTest -Pbenchmark --tests '*Benchmark'`.
+ * Results go to `build/reports/benchmarks/<name>.txt`.
+ */
+internal object Benchmarks {
+
+    fun assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", System.getProperty("benchmark") == "true")
+    }
+
+    /**
+     * CPU time of the calling thread spent in [block], in nanoseconds.
+     */
+    fun cpuNanos(block: () -> Unit): Long {
+        val threads = ManagementFactory.getThreadMXBean()
+        val start = threads.currentThreadCpuTime
+        block()
+        return threads.currentThreadCpuTime - start
+    }
+
+    /**
+     * Best wall-clock time of [rounds] runs of [block], in milliseconds.
+     */
+    fun bestOfMillis(rounds: Int, block: () -> Unit): Long = (1..rounds).minOf {
+        val start = System.nanoTime()
+        block()
+        (System.nanoTime() - start) / 1_000_000
+    }
+
+    fun report(name: String, lines: List<String>) {
+        val dir = File(System.getProperty("benchmark.reportDir") ?: "build/reports/benchmarks")
+        dir.mkdirs()
+        File(dir, "$name.txt").writeText(lines.joinToString(separator = "\n", postfix = "\n"))
+    }
+}
@@ -0,0 +1,126 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.Random
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.ResponseBody
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okio.Buffer
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Client CPU per GB of the chunk write paths on a local server: the original `byteStream()` loop
+ * with a fresh array per chunk, the same loop with a [ByteBufferPool] buffer
+ * ([ChunkWriteMode.STREAM_COPY]) and the segment drain into [FileChannelSink]
+ * ([ChunkWriteMode.SEGMENT_TRANSFER]). Only the reading thread is measured, not the server.
+ */
+class ChunkWriteBenchmark {
+
+    private lateinit var server: MockWebServer
+    private lateinit var file: File
+    private val client = OkHttpClient()
+    private val body = Buffer()
+    private lateinit var expected: ByteArray
+
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+        val data = ByteArray(BODY_BYTES)
+        Random(3).nextBytes(data)
+        body.write(data)
+        expected = MessageDigest.getInstance("SHA-256").digest(data)
+        server = MockWebServer()
+        server.start()
+        file = File.createTempFile("chunk-write", ".bin")
+    }
+
+    @After
+    fun tearDown() {
+        if (::server.isInitialized) server.shutdown()
+        if (::file.isInitialized) file.delete()
+    }
+
+    @Test
+    fun cpuPerGigabyte() {
+        val pool = ByteBufferPool(4 * 1024 * 1024L)
+        val modes = linkedMapOf<String, (ResponseBody, FileChannel) -> Unit>(
+            "byteStream loop, new 8 KB array" to { response, channel -> copyLoop(response, channel, ByteBuffer.allocate(8192)) },
+            "byteStream loop, pooled 16 KB buffer" to { response, channel ->
+                val buffer = pool.acquire(16 * 1024)
+                try {
+                    copyLoop(response, channel, buffer)
+                } finally {
+                    pool.release(buffer)
+                }
+            },
+            "segment transfer into FileChannelSink" to { response, channel ->
+                response.source().use { source ->
+                    val sink = FileChannelSink(channel, 0L)
+                    while (!source.exhausted()) sink.write(source.buffer, source.buffer.size)
+                }
+            }
+        )
+        // Warm up every path before measuring.
+        modes.values.forEach { mode -> download(mode) }
+        val cpu = modes.mapValues { (_, mode) -> (1..ROUNDS).map { download(mode) }.minOrNull()!! }
+
+        val perGigabyte = cpu.mapValues { (_, nanos) -> nanos * (1L shl 30) / BODY_BYTES / 1_000_000 }
+        Benchmarks.report(
+            "ChunkWriteBenchmark",
+            listOf("client CPU per GB, ${BODY_BYTES shr 20} MB body, best of $ROUNDS") +
+                perGigabyte.map { (name, millis) -> "$name: ${millis}ms" }
+        )
+        val copy = perGigabyte.getValue("byteStream loop, pooled 16 KB buffer")
+        val segments = perGigabyte.getValue("segment transfer into FileChannelSink")
+        assertTrue("segment transfer ${segments}ms/GB vs copy loop ${copy}ms/GB", segments <= copy * 5 / 4)
+    }
+
+    /**
+     * Downloads the body once with [mode] and returns the CPU time of the reading thread.
+     */
+    private fun download(mode: (ResponseBody, FileChannel) -> Unit): Long {
+        server.enqueue(MockResponse().setBody(body.clone()))
+        val cpu = RandomAccessFile(file, "rw").use { raf ->
+            raf.setLength(0L)
+            Benchmarks.cpuNanos {
+                client.newCall(Request.Builder().url(server.url("/file")).build()).execute().use { response ->
+                    mode(response.body!!, raf.channel)
+                }
+            }
+        }
+        assertArrayEquals(expected, MessageDigest.getInstance("SHA-256").digest(file.readBytes()))
+        return cpu
+    }
+
+    // The loop before SEGMENT_TRANSFER: read into an array, then write it at the next position.
+    private fun copyLoop(response: ResponseBody, channel: FileChannel, buffer: ByteBuffer) {
+        var position = 0L
+        response.byteStream().use { source ->
+            val array = buffer.array()
+            var read = source.read(array, buffer.arrayOffset(), buffer.capacity())
+            while (read != -1) {
+                buffer.clear()
+                buffer.limit(read)
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position)
+                }
+                read = source.read(array, buffer.arrayOffset(), buffer.capacity())
+            }
+        }
+    }
+
+    private companion object {
+        const val BODY_BYTES = 64 shl 20
+        const val ROUNDS = 5
+    }
+}
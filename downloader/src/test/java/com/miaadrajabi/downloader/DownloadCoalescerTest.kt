@@ -0,0 +1,104 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Local unit tests for how [DownloadCoalescer] shares one transfer between several callers.
+ * Followers use the leader's file, so completion needs no link or copy.
+ */
+class DownloadCoalescerTest {
+
+    private val events = mutableListOf<String>()
+    private val finished = mutableListOf<String>()
+    private val recorder = object : DownloadListener {
+        override fun onPaused(handle: DownloadHandle) {
+            events += "paused ${handle.id}"
+        }
+
+        override fun onProgress(handle: DownloadHandle, progress: DownloadProgress) {
+            events += "progress ${handle.id}"
+        }
+
+        override fun onCompleted(handle: DownloadHandle) {
+            events += "completed ${handle.id}"
+        }
+
+        override fun onCancelled(handle: DownloadHandle) {
+            events += "cancelled ${handle.id}"
+        }
+    }
+    private val coalescer = DownloadCoalescer(recorder, CoroutineScope(Dispatchers.Unconfined)) { finished += it.id }
+    private val request = DownloadRequest("https://a.example/file.bin", "file.bin")
+    private val leader = DownloadHandle("leader", request.url)
+    private lateinit var dir: File
+    private lateinit var resolution: StorageResolution
+
+    @Before
+    fun setUp() {
+        dir = createTempDir("coalescer")
+        resolution = StorageResolution(dir, File(dir, "file.bin").apply { writeText("content") }, false)
+        coalescer.track(request, leader, resolution)
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun attach(id: String): DownloadHandle {
+        val handle = DownloadHandle(id, request.url)
+        assertTrue(coalescer.attach(coalescer.find(request)!!, handle, resolution))
+        events.clear()
+        return handle
+    }
+
+    @Test
+    fun events_areRepeatedForFollowers() {
+        attach("follower")
+        coalescer.onPaused(leader)
+        assertEquals(listOf("paused leader", "paused follower"), events)
+        assertEquals(leader, coalescer.primaryOf("follower"))
+        assertNull(coalescer.primaryOf("leader"))
+    }
+
+    @Test
+    fun detachPrimary_keepsTransferForFollowers() {
+        attach("follower")
+        assertEquals(leader, coalescer.detachPrimary("leader"))
+        assertTrue(coalescer.isDetachedPrimary("leader"))
+        // A second stop of the same caller does nothing.
+        assertNull(coalescer.detachPrimary("leader"))
+
+        coalescer.onProgress(leader, DownloadProgress(1L, 10L))
+        coalescer.onCompleted(leader)
+        assertEquals(listOf("progress follower", "completed follower"), events)
+        assertEquals(listOf("follower"), finished)
+    }
+
+    @Test
+    fun detachPrimary_withoutFollowersStopsTransfer() {
+        assertNull(coalescer.detachPrimary("leader"))
+        assertFalse(coalescer.isDetachedPrimary("leader"))
+    }
+
+    @Test
+    fun abandoned_onceLastFollowerDetaches() {
+        attach("first")
+        attach("second")
+        coalescer.detachPrimary("leader")
+        val first = coalescer.detach("first")!!
+        assertFalse(coalescer.abandoned(first.transfer))
+        val second = coalescer.detach("second")!!
+        assertTrue(coalescer.abandoned(second.transfer))
+
+        coalescer.onCancelled(leader)
+        assertTrue(events.isEmpty())
+    }
+}
@@ -0,0 +1,50 @@
+package com.miaadrajabi.downloader
+
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Offer, poll and release of ten thousand waiting downloads spread over 20 hosts.
+ */
+class DownloadQueueBenchmark {
+
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+    }
+
+    @Test
+    fun tenThousandEntries() {
+        // Warm up before measuring.
+        drain()
+        val millis = Benchmarks.bestOfMillis(ROUNDS) { drain() }
+        Benchmarks.report("DownloadQueueBenchmark", listOf("$COUNT entries, PRIORITY policy: ${millis}ms"))
+        assertTrue("draining $COUNT entries took $millis ms", millis < 2_000)
+    }
+
+    private fun drain() {
+        val queue = DownloadQueue<String>(4, 6, StandardQueuePolicy.PRIORITY)
+        for (i in 0 until COUNT) {
+            val id = "d$i"
+            val host = "h${i % 20}.example"
+            queue.offer(id, DownloadRequest("https://$host/$id", id, id = id, priority = i % 7), host, 3, null, id)
+        }
+        val running = ArrayDeque<DownloadQueue.Ticket<String>>()
+        var drained = 0
+        while (drained < COUNT) {
+            while (true) {
+                val ticket = queue.poll() ?: break
+                running.addLast(ticket)
+            }
+            queue.release(running.removeFirst())
+            drained++
+        }
+    }
+
+    private companion object {
+        const val COUNT = 10_000
+        const val ROUNDS = 5
+    }
+}
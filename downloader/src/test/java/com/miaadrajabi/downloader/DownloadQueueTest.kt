@@ -0,0 +1,144 @@
+package com.miaadrajabi.downloader
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Local unit tests for [DownloadQueue] ordering, limits and scaling.
+ */
+class DownloadQueueTest {
+
+    private fun queue(
+        maxActive: Int = 4,
+        perHost: Int = 6,
+        policy: DownloadQueuePolicy = StandardQueuePolicy.FIFO
+    ) = DownloadQueue<String>(maxActive, perHost, policy)
+
+    private fun DownloadQueue<String>.add(
+        id: String,
+        host: String = "a.example",
+        connections: Int = 1,
+        priority: Int = 0,
+        remaining: Long? = null
+    ) = offer(id, DownloadRequest("https://$host/$id", id, id = id, priority = priority), host, connections, remaining, id)
+
+    @Test
+    fun fifo_startsInArrivalOrder() {
+        val queue = queue(maxActive = 10)
+        listOf("a", "b", "c").forEach { queue.add(it) }
+        assertEquals(listOf("a", "b", "c"), generateSequence { queue.poll()?.id }.toList())
+    }
+
+    @Test
+    fun priority_startsHighestFirst() {
+        val queue = queue(maxActive = 10, policy = StandardQueuePolicy.PRIORITY)
+        queue.add("low", priority = 0)
+        queue.add("high", priority = 5)
+        queue.add("mid", priority = 1)
+        queue.add("high2", priority = 5)
+        assertEquals(listOf("high", "high2", "mid", "low"), generateSequence { queue.poll()?.id }.toList())
+    }
+
+    @Test
+    fun shortestRemaining_putsUnknownSizesLast() {
+        val queue = queue(maxActive = 10, policy = StandardQueuePolicy.SHORTEST_REMAINING_FIRST)
+        queue.add("unknown")
+        queue.add("big", remaining = 1_000_000L)
+        queue.add("small", remaining = 10L)
+        assertEquals(listOf("small", "big", "unknown"), generateSequence { queue.poll()?.id }.toList())
+    }
+
+    @Test
+    fun globalLimit_holdsUntilRelease() {
+        val queue = queue(maxActive = 2)
+        listOf("a", "b", "c").forEach { queue.add(it, host = "$it.example") }
+        val first = queue.poll()!!
+        assertNotNull(queue.poll())
+        assertNull(queue.poll())
+        queue.release(first)
+        assertEquals("c", queue.poll()?.id)
+    }
+
+    @Test
+    fun hostBudget_letsOtherHostsThrough() {
+        val queue = queue(maxActive = 10, perHost = 4)
+        queue.add("a1", host = "a.example", connections = 3)
+        queue.add("a2", host = "a.example", connections = 3)
+        queue.add("b1", host = "b.example", connections = 3)
+        val a1 = queue.poll()!!
+        assertEquals("b1", queue.poll()?.id)
+        assertNull(queue.poll())
+        queue.release(a1)
+        assertEquals("a2", queue.poll()?.id)
+    }
+
+    @Test
+    fun oversizedDownload_isCappedToHostBudget() {
+        val queue = queue(perHost = 2)
+        queue.add("wide", connections = 8)
+        assertEquals(2, queue.poll()?.connections)
+    }
+
+    @Test
+    fun removedEntries_areSkipped() {
+        val queue = queue()
+        queue.add("a")
+        queue.add("b")
+        assertEquals("a", queue.remove("a"))
+        assertFalse(queue.isWaiting("a"))
+        assertEquals("b", queue.poll()?.id)
+        assertNull(queue.poll())
+    }
+
+    @Test
+    fun preemption_picksLowestPriorityRunningDownload() {
+        val queue = queue(maxActive = 2, policy = StandardQueuePolicy.PRIORITY)
+        queue.add("bundle1", host = "a.example", priority = 0)
+        queue.add("bundle2", host = "b.example", priority = 1)
+        queue.poll()
+        queue.poll()
+        queue.add("urgent", host = "c.example", priority = 10)
+        assertNull(queue.poll())
+        assertEquals("bundle1", queue.preemptionVictim()?.id)
+        // Only one preemption at a time.
+        assertNull(queue.preemptionVictim())
+    }
+
+    @Test
+    fun preemption_needsLowerPriorityOnTheBlockedHost() {
+        val queue = queue(maxActive = 10, perHost = 3, policy = StandardQueuePolicy.PRIORITY)
+        queue.add("other", host = "b.example", connections = 3, priority = 0)
+        queue.add("same", host = "a.example", connections = 3, priority = 5)
+        queue.poll()
+        queue.poll()
+        queue.add("urgent", host = "a.example", connections = 3, priority = 5)
+        assertNull(queue.poll())
+        assertNull(queue.preemptionVictim())
+    }
+
+    @Test
+    fun tenThousandEntries_drainInPriorityOrder() {
+        val queue = queue(maxActive = 4, perHost = 6, policy = StandardQueuePolicy.PRIORITY)
+        val count = 10_000
+        for (i in 0 until count) {
+            queue.add("d$i", host = "h${i % 20}.example", connections = 3, priority = i % 7)
+        }
+        var drained = 0
+        var lastPriority = Int.MAX_VALUE
+        val running = ArrayDeque<DownloadQueue.Ticket<String>>()
+        while (drained < count) {
+            while (true) {
+                val ticket = queue.poll() ?: break
+                running.addLast(ticket)
+            }
+            assertTrue(queue.activeCount <= 4)
+            val done = running.removeFirst()
+            assertTrue(done.info.request.priority <= lastPriority)
+            lastPriority = done.info.request.priority
+            queue.release(done)
+            drained++
+        }
+        assertEquals(0, queue.waitingCount)
+    }
+}
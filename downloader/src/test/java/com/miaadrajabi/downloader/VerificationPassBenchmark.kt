@@ -0,0 +1,70 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.security.MessageDigest
+import java.util.Random
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * The single [VerificationPass] against one read per check, and the table hex encoder against
+ * the formatter it replaced.
+ */
+class VerificationPassBenchmark {
+
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+        file = File.createTempFile("verification", ".apk")
+        val data = ByteArray(BENCHMARK_BYTES)
+        Random(11).nextBytes(data)
+        data[0] = 'P'.toByte()
+        data[1] = 'K'.toByte()
+        file.writeBytes(data)
+    }
+
+    @After
+    fun tearDown() {
+        if (::file.isInitialized) file.delete()
+    }
+
+    @Test
+    fun singlePassAgainstSequentialReads() {
+        val algorithms = listOf(ChecksumAlgorithm.MD5, ChecksumAlgorithm.SHA256, ChecksumAlgorithm.SHA512)
+        val expected = algorithms.associateWith { legacyChecksum(file, it) }
+        val sequential = Benchmarks.bestOfMillis(ROUNDS) {
+            algorithms.forEach { assertEquals(expected[it], legacyChecksum(file, it)) }
+            assertTrue(legacyMagic(file))
+        }
+        val pass = Benchmarks.bestOfMillis(ROUNDS) {
+            val checks = algorithms.map { DigestCheck(it, expected.getValue(it)) } + ZipMagicCheck()
+            assertTrue(VerificationPass().run(file, checks).isEmpty())
+        }
+
+        val digest = MessageDigest.getInstance("SHA-512").digest(ByteArray(1))
+        val formatted = Benchmarks.bestOfMillis(ROUNDS) { repeat(HEX_ITERATIONS) { legacyHex(digest) } }
+        val table = Benchmarks.bestOfMillis(ROUNDS) { repeat(HEX_ITERATIONS) { FileIntegrityVerifier.toHex(digest) } }
+
+        Benchmarks.report(
+            "VerificationPassBenchmark",
+            listOf(
+                "${BENCHMARK_BYTES shr 20} MB, MD5+SHA256+SHA512+magic: sequential=${sequential}ms single pass=${pass}ms",
+                "hex of $HEX_ITERATIONS SHA-512 digests: formatter=${formatted}ms table=${table}ms"
+            )
+        )
+        // Hashing dominates on a cached file, so the pass only has to keep up there.
+        assertTrue("single pass ${pass}ms vs sequential ${sequential}ms", pass <= sequential * 11 / 10)
+        assertTrue("table ${table}ms vs formatter ${formatted}ms", table * 10 < formatted)
+    }
+
+    private companion object {
+        const val ROUNDS = 5
+        const val HEX_ITERATIONS = 20_000
+        const val BENCHMARK_BYTES = 32 shl 20
+    }
+}
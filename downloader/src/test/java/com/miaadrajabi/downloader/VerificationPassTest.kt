@@ -0,0 +1,97 @@
+package com.miaadrajabi.downloader
+
+import java.io.File
+import java.io.FileInputStream
+import java.security.MessageDigest
+import java.util.Locale
+import java.util.Random
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Local unit tests for [VerificationPass] and the hex encoder.
+ */
+class VerificationPassTest {
+
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        file = File.createTempFile("verification", ".apk")
+        val data = ByteArray(3 * VerificationPass.DEFAULT_BUFFER_BYTES + 12345)
+        Random(7).nextBytes(data)
+        data[0] = 'P'.toByte()
+        data[1] = 'K'.toByte()
+        file.writeBytes(data)
+    }
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    @Test
+    fun toHex_matchesFormatter() {
+        val bytes = ByteArray(256) { it.toByte() }
+        assertEquals(legacyHex(bytes), FileIntegrityVerifier.toHex(bytes))
+        assertEquals("", FileIntegrityVerifier.toHex(ByteArray(0)))
+    }
+
+    @Test
+    fun run_feedsEveryDigestFromOneRead() {
+        val algorithms = listOf(ChecksumAlgorithm.MD5, ChecksumAlgorithm.SHA256, ChecksumAlgorithm.SHA512)
+        val checks = algorithms.map { DigestCheck(it, legacyChecksum(file, it)) }
+        val failed = VerificationPass().run(file, checks + ZipMagicCheck())
+        assertTrue(failed.isEmpty())
+        checks.forEach { assertEquals(legacyChecksum(file, it.algorithm), it.actual) }
+    }
+
+    @Test
+    fun run_reportsMismatchedDigest() {
+        val good = DigestCheck(ChecksumAlgorithm.SHA256, legacyChecksum(file, ChecksumAlgorithm.SHA256).toUpperCase(Locale.US))
+        val bad = DigestCheck(ChecksumAlgorithm.MD5, "00".repeat(16))
+        val failed = VerificationPass().run(file, listOf(good, bad))
+        assertEquals(setOf<VerificationPass.Check>(bad), failed.keys)
+        assertEquals("Checksum mismatch (MD5)", failed[bad])
+    }
+
+    @Test
+    fun zipMagic_failsOnOtherContent() {
+        file.writeBytes(byteArrayOf(0x7f, 'E'.toByte(), 'L'.toByte(), 'F'.toByte()))
+        val check = ZipMagicCheck()
+        assertEquals("APK magic number mismatch", VerificationPass().run(file, listOf(check))[check])
+        file.writeBytes(byteArrayOf('P'.toByte()))
+        val short = ZipMagicCheck()
+        assertEquals("APK file too short to read magic number", VerificationPass().run(file, listOf(short))[short])
+    }
+
+    @Test
+    fun run_readFailureFailsEveryCheck() {
+        val missing = File(file.parentFile, "missing-${System.nanoTime()}.apk")
+        val checks = listOf(DigestCheck(ChecksumAlgorithm.SHA256, ""), ZipMagicCheck())
+        assertEquals(checks.toSet(), VerificationPass().run(missing, checks).keys)
+    }
+}
+
+// The implementation before VerificationPass: one 8 KB stream per digest.
+internal fun legacyChecksum(file: File, algorithm: ChecksumAlgorithm): String {
+    val digest = MessageDigest.getInstance(algorithm.name)
+    FileInputStream(file).use { input ->
+        val buffer = ByteArray(8192)
+        var read: Int
+        while (input.read(buffer).also { read = it } != -1) {
+            digest.update(buffer, 0, read)
+        }
+    }
+    return legacyHex(digest.digest())
+}
+
+internal fun legacyMagic(file: File): Boolean = FileInputStream(file).use { input ->
+    val magic = ByteArray(2)
+    input.read(magic) == 2 && String(magic) == "PK"
+}
+
+internal fun legacyHex(bytes: ByteArray): String = bytes.joinToString("") { "%02x".format(it) }
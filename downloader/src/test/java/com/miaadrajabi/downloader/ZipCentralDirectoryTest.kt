@@ -0,0 +1,101 @@
+package com.miaadrajabi.downloader
+
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.Random
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipOutputStream
+import org.junit.After
+import org.junit.Test
+
+import org.junit.Assert.*
+
+/**
+ * Local unit tests for [ZipCentralDirectory] on well-formed, truncated and garbage tails.
+ */
+class ZipCentralDirectoryTest {
+
+    private val files = mutableListOf<File>()
+
+    @After
+    fun tearDown() {
+        files.forEach { it.delete() }
+    }
+
+    private fun zip(comment: String? = null): ByteArray {
+        val out = ByteArrayOutputStream()
+        ZipOutputStream(out).use { zip ->
+            comment?.let { zip.setComment(it) }
+            listOf("AndroidManifest.xml", "classes.dex", "res/layout/main.xml").forEach { name ->
+                zip.putNextEntry(ZipEntry(name))
+                zip.write(ByteArray(512) { it.toByte() })
+                zip.closeEntry()
+            }
+        }
+        return out.toByteArray()
+    }
+
+    private fun <T> open(bytes: ByteArray, block: (RandomAccessFile) -> T): T {
+        val file = File.createTempFile("central-directory", ".apk").also { it.writeBytes(bytes); files += it }
+        return RandomAccessFile(file, "r").use(block)
+    }
+
+    private fun locate(bytes: ByteArray): ZipCentralDirectory? =
+        open(bytes) { ZipCentralDirectory.locate(it.channel, it.length()) }
+
+    @Test
+    fun locate_readsDirectoryAndFindsEntries() {
+        val bytes = zip()
+        open(bytes) { raf ->
+            val directory = ZipCentralDirectory.locate(raf.channel, raf.length())!!
+            assertEquals(3, directory.entries)
+            assertEquals(bytes.size - 22L, directory.offset + directory.size)
+            assertTrue(directory.contains(raf.channel, "AndroidManifest.xml"))
+            assertTrue(directory.contains(raf.channel, "res/layout/main.xml"))
+            assertFalse(directory.contains(raf.channel, "AndroidManifest.xm"))
+        }
+    }
+
+    @Test
+    fun locate_skipsArchiveComment() {
+        assertEquals(3, locate(zip(comment = "built by test"))!!.entries)
+    }
+
+    @Test
+    fun truncatedTail_isRejected() {
+        val bytes = zip()
+        listOf(1, 10, 21, 200).forEach { cut ->
+            assertThrows(ZipException::class.java) { locate(bytes.copyOf(bytes.size - cut)) }
+        }
+    }
+
+    @Test
+    fun garbageTail_isRejected() {
+        val garbage = ByteArray(4096).also { Random(7).nextBytes(it) }
+        assertThrows(ZipException::class.java) { locate(garbage) }
+        // Bytes appended after the EOCD record no longer match its comment length.
+        assertThrows(ZipException::class.java) { locate(zip() + garbage) }
+        assertThrows(ZipException::class.java) { locate(ByteArray(10)) }
+    }
+
+    @Test
+    fun directoryNotEndingAtEocd_isRejected() {
+        val bytes = zip()
+        // Central directory offset, 16 bytes into the EOCD record.
+        bytes[bytes.size - 22 + 16] = (bytes[bytes.size - 22 + 16] - 1).toByte()
+        val error = assertThrows(ZipException::class.java) { locate(bytes) }
+        assertTrue(error.message, error.message!!.contains("does not end at EOCD"))
+    }
+
+    @Test
+    fun corruptDirectoryRecord_failsContains() {
+        val bytes = zip()
+        val directory = locate(bytes)!!
+        bytes[directory.offset.toInt()] = 0
+        open(bytes) { raf ->
+            assertThrows(ZipException::class.java) { directory.contains(raf.channel, "classes.dex") }
+        }
+    }
+}